@@ -0,0 +1,140 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.edgecallouts.xmldsig;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.crypto.dsig.SignatureMethod;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.spec.DigestMethodParameterSpec;
+import javax.xml.crypto.dsig.spec.SignatureMethodParameterSpec;
+
+/**
+ * Maps the short names accepted in the signing-method and digest-method
+ * properties to the XMLDSIG algorithm URIs, and holds the
+ * factory objects for them. DigestMethod instances are immutable, so one
+ * instance of each is shared. SignatureMethod instances in the JDK hold a
+ * java.security.Signature and are not safe to share between threads, so
+ * they are created for each use. An algorithm that the XMLDSig provider of
+ * the runtime does not support, such as rsa-pss in older Java 8 updates, is
+ * treated as unknown.
+ */
+final class AlgorithmRegistry {
+  private static final XMLSignatureFactory signatureFactory =
+      XMLSignatureFactory.getInstance("DOM");
+  private static final Map<String, SignatureAlgorithm> signatureAlgorithms;
+  private static final Map<String, DigestAlgorithm> digestAlgorithms;
+
+  static {
+    Map<String, SignatureAlgorithm> sigs = new HashMap<String, SignatureAlgorithm>();
+    register(sigs, "rsa-sha1", "http://www.w3.org/2000/09/xmldsig#rsa-sha1", "RSA");
+    register(sigs, "rsa-sha256", "http://www.w3.org/2001/04/xmldsig-more#rsa-sha256", "RSA");
+    register(sigs, "rsa-sha384", "http://www.w3.org/2001/04/xmldsig-more#rsa-sha384", "RSA");
+    register(sigs, "rsa-sha512", "http://www.w3.org/2001/04/xmldsig-more#rsa-sha512", "RSA");
+    register(sigs, "rsa-pss", "http://www.w3.org/2007/05/xmldsig-more#sha256-rsa-MGF1", "RSA");
+    register(sigs, "ecdsa-sha1", "http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha1", "EC");
+    register(sigs, "ecdsa-sha256", "http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha256", "EC");
+    register(sigs, "ecdsa-sha384", "http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha384", "EC");
+    register(sigs, "ecdsa-sha512", "http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha512", "EC");
+    signatureAlgorithms = Collections.unmodifiableMap(sigs);
+
+    Map<String, DigestAlgorithm> digests = new HashMap<String, DigestAlgorithm>();
+    register(digests, "sha1", DigestMethod.SHA1);
+    register(digests, "sha256", DigestMethod.SHA256);
+    register(digests, "sha384", "http://www.w3.org/2001/04/xmldsig-more#sha384");
+    register(digests, "sha512", DigestMethod.SHA512);
+    digestAlgorithms = Collections.unmodifiableMap(digests);
+  }
+
+  private AlgorithmRegistry() {}
+
+  static final class SignatureAlgorithm {
+    final String name;
+    final String uri;
+    final String keyAlgorithm;
+
+    SignatureAlgorithm(String name, String uri, String keyAlgorithm) {
+      this.name = name;
+      this.uri = uri;
+      this.keyAlgorithm = keyAlgorithm;
+    }
+
+    // eg, BouncyCastle reports "ECDSA" for EC keys
+    boolean isCompatibleWith(Key key) {
+      return key.getAlgorithm().startsWith(keyAlgorithm);
+    }
+
+    SignatureMethod newSignatureMethod()
+        throws NoSuchAlgorithmException, InvalidAlgorithmParameterException {
+      return signatureFactory.newSignatureMethod(uri, (SignatureMethodParameterSpec) null);
+    }
+  }
+
+  static final class DigestAlgorithm {
+    final String name;
+    final String uri;
+    private final DigestMethod digestMethod; // null if not supported by the provider
+
+    DigestAlgorithm(String name, String uri, DigestMethod digestMethod) {
+      this.name = name;
+      this.uri = uri;
+      this.digestMethod = digestMethod;
+    }
+
+    DigestMethod getDigestMethod() throws NoSuchAlgorithmException {
+      if (digestMethod == null) {
+        throw new NoSuchAlgorithmException("unsupported digest-method: " + name);
+      }
+      return digestMethod;
+    }
+  }
+
+  private static void register(
+      Map<String, SignatureAlgorithm> map, String name, String uri, String keyAlgorithm) {
+    try {
+      signatureFactory.newSignatureMethod(uri, (SignatureMethodParameterSpec) null);
+    } catch (NoSuchAlgorithmException | InvalidAlgorithmParameterException e) {
+      // not available in this runtime; reported as an unsupported signing-method
+      return;
+    }
+    map.put(name, new SignatureAlgorithm(name, uri, keyAlgorithm));
+  }
+
+  private static void register(Map<String, DigestAlgorithm> map, String name, String uri) {
+    DigestMethod digestMethod = null;
+    try {
+      digestMethod = signatureFactory.newDigestMethod(uri, (DigestMethodParameterSpec) null);
+    } catch (NoSuchAlgorithmException | InvalidAlgorithmParameterException e) {
+      // not available in this runtime; reported when requested
+    }
+    map.put(name, new DigestAlgorithm(name, uri, digestMethod));
+  }
+
+  /** Returns the algorithm for the short name, or null if it is not known or supported. */
+  static SignatureAlgorithm getSignatureAlgorithm(String name) {
+    return signatureAlgorithms.get(name.toLowerCase());
+  }
+
+  /** Returns the algorithm for the short name, or null if it is not known. */
+  static DigestAlgorithm getDigestAlgorithm(String name) {
+    return digestAlgorithms.get(name.toLowerCase());
+  }
+}
@@ -0,0 +1,269 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.edgecallouts.xmldsig;
+
+import com.google.apigee.util.XmlUtils;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.xml.XMLConstants;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Signs or validates many independent documents in one invocation. The
+ * documents are either the child elements of the root of a container
+ * document, or the non-blank lines of the source text, one document per line.
+ * Each is processed on a shared pool of worker threads, bounded at one per
+ * processor, with the keys and configuration loaded once by the callout. The
+ * results are collected, in order, into a single container:
+ *
+ * <pre>
+ * &lt;batch count="2" errors="1"&gt;
+ *   &lt;item index="0" status="signed"&gt;&lt;order&gt;...&lt;/order&gt;&lt;/item&gt;
+ *   &lt;item index="1" status="error" error="..."/&gt;
+ * &lt;/batch&gt;
+ * </pre>
+ *
+ * A container whose children are such item elements is read as the documents
+ * inside them, so the output of a batch Sign can be validated as it is.
+ */
+final class Batch {
+  static final String STATUS_ERROR = "error";
+  static final int POOL_SIZE = Runtime.getRuntime().availableProcessors();
+
+  enum Mode {
+    NONE,
+    CONTAINER,
+    LINES
+  }
+
+  interface Processor {
+    Result process(Document doc) throws Exception;
+  }
+
+  interface Callback {
+    void done(Result result);
+  }
+
+  static final class Result {
+    final String status;
+    final String content; // serialized XML to place in the item, or null
+    final String error;
+
+    Result(String status, String content) {
+      this(status, content, null);
+    }
+
+    private Result(String status, String content, String error) {
+      this.status = status;
+      this.content = content;
+      this.error = error;
+    }
+  }
+
+  private Batch() {}
+
+  // Each child element of the root, as a document of its own.
+  static List<Object> fromContainer(Document container) {
+    List<Object> items = new ArrayList<Object>();
+    for (Node n = container.getDocumentElement().getFirstChild();
+        n != null;
+        n = n.getNextSibling()) {
+      if (n.getNodeType() != Node.ELEMENT_NODE) continue;
+      Element element = (Element) n;
+      if (element.getNamespaceURI() == null && element.getLocalName().equals("item")) {
+        element = firstChildElement(element);
+      }
+      items.add((element != null) ? toDocument(element) : null);
+    }
+    return items;
+  }
+
+  // Each non-blank line, parsed later, on a worker thread.
+  static List<Object> fromLines(String text) {
+    List<Object> items = new ArrayList<Object>();
+    for (String line : text.split("\r?\n")) {
+      if (line.trim().length() > 0) {
+        items.add(line);
+      }
+    }
+    return items;
+  }
+
+  private static Element firstChildElement(Element parent) {
+    for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+      if (n.getNodeType() == Node.ELEMENT_NODE) return (Element) n;
+    }
+    return null;
+  }
+
+  // Copies the element into a new document, declaring on its root the
+  // namespaces it inherited from the container, so that it canonicalizes
+  // the same as it would when parsed on its own.
+  private static Document toDocument(Element element) {
+    Document doc =
+        element.getOwnerDocument().getImplementation().createDocument(null, null, null);
+    Element root = (Element) doc.importNode(element, true);
+    for (Node n = element.getParentNode(); n instanceof Element; n = n.getParentNode()) {
+      NamedNodeMap attributes = n.getAttributes();
+      for (int i = 0; i < attributes.getLength(); i++) {
+        Attr attr = (Attr) attributes.item(i);
+        if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attr.getNamespaceURI())
+            && !root.hasAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, attr.getLocalName())) {
+          root.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, attr.getName(), attr.getValue());
+        }
+      }
+    }
+    doc.appendChild(root);
+    return doc;
+  }
+
+  /** Processes each item on the pool, and returns the results in order. */
+  static List<Result> run(List<Object> items, final Processor processor)
+      throws InterruptedException {
+    List<Future<Result>> futures = new ArrayList<Future<Result>>(items.size());
+    for (final Object item : items) {
+      futures.add(
+          WorkerPool.executor.submit(
+              new Callable<Result>() {
+                public Result call() {
+                  return process(item, processor);
+                }
+              }));
+    }
+    List<Result> results = new ArrayList<Result>(items.size());
+    try {
+      for (Future<Result> future : futures) {
+        try {
+          results.add(future.get());
+        } catch (ExecutionException e) {
+          results.add(new Result(STATUS_ERROR, null, errorText(e.getCause())));
+        }
+      }
+    } finally {
+      for (Future<Result> future : futures) {
+        future.cancel(true);
+      }
+    }
+    return results;
+  }
+
+  /** Processes the item on the pool, and calls back with its result. */
+  static void runAsync(final Object item, final Processor processor, final Callback callback) {
+    WorkerPool.executor.execute(
+        new Runnable() {
+          public void run() {
+            callback.done(process(item, processor));
+          }
+        });
+  }
+
+  private static Result process(Object item, Processor processor) {
+    try {
+      if (item == null) {
+        throw new IllegalStateException("batch item holds no document");
+      }
+      Document doc =
+          (item instanceof Document) ? (Document) item : XmlUtils.parseXml((String) item);
+      return processor.process(doc);
+    } catch (Exception e) {
+      return new Result(STATUS_ERROR, null, errorText(e));
+    }
+  }
+
+  // The same text an error would set in xmldsig_error.
+  private static String errorText(Throwable t) {
+    String error = t.toString();
+    int ch = error.lastIndexOf(':');
+    return (ch >= 0) ? error.substring(ch + 2).trim() : error;
+  }
+
+  static int count(List<Result> results, String status) {
+    int n = 0;
+    for (Result result : results) {
+      if (result.status.equals(status)) n++;
+    }
+    return n;
+  }
+
+  static String toXml(List<Result> results) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("<batch count=\"")
+        .append(results.size())
+        .append("\" errors=\"")
+        .append(count(results, STATUS_ERROR))
+        .append("\">");
+    for (int i = 0; i < results.size(); i++) {
+      Result result = results.get(i);
+      sb.append("<item index=\"").append(i).append("\" status=\"").append(result.status);
+      if (result.error != null) {
+        sb.append("\" error=\"");
+        escape(sb, result.error);
+      }
+      if (result.content == null) {
+        sb.append("\"/>");
+      } else {
+        sb.append("\">").append(result.content).append("</item>");
+      }
+    }
+    return sb.append("</batch>").toString();
+  }
+
+  private static void escape(StringBuilder sb, String s) {
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '&':
+          sb.append("&amp;");
+          break;
+        case '<':
+          sb.append("&lt;");
+          break;
+        case '"':
+          sb.append("&quot;");
+          break;
+        default:
+          sb.append(c);
+      }
+    }
+  }
+
+  // Created on first use, with daemon threads, one per processor.
+  private static final class WorkerPool {
+    static final ExecutorService executor =
+        Executors.newFixedThreadPool(
+            POOL_SIZE,
+            new ThreadFactory() {
+              private final AtomicInteger count = new AtomicInteger();
+
+              public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "xmldsig-batch-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+              }
+            });
+  }
+}
@@ -0,0 +1,345 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.edgecallouts.xmldsig;
+
+import com.google.apigee.util.XmlUtils;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Signs or validates every matching file under a directory tree, offline, on
+ * a pool of worker threads, with the keys loaded once:
+ *
+ * <pre>
+ * java -cp ... com.google.apigee.edgecallouts.xmldsig.BulkTool \
+ *     --mode sign --in archive --out resigned --private-key key.pem
+ * java -cp ... com.google.apigee.edgecallouts.xmldsig.BulkTool \
+ *     --mode validate --in resigned --public-key pub.pem
+ * </pre>
+ *
+ * Signing writes each file to the same relative path under the output
+ * directory, replacing any Signature elements at the root, and skips a file
+ * whose output is newer than it and carries the keys of this run in its
+ * KeyInfo, unless {@code --force true}. Each file is parsed from a memory
+ * mapping. The exit status is 1 when any file failed or did not validate.
+ */
+public final class BulkTool {
+  private static final int MAX_REPORTED_FAILURES = 20;
+
+  private final XmlDsigEngine engine;
+  private final boolean signing;
+  private final boolean replaceSignatures;
+  private final boolean force;
+  private final Path in;
+  private final Path out;
+  private final Set<String> keyFingerprints;
+
+  private final AtomicInteger succeeded = new AtomicInteger();
+  private final AtomicInteger invalid = new AtomicInteger();
+  private final AtomicInteger skipped = new AtomicInteger();
+  private final AtomicInteger failed = new AtomicInteger();
+  private final AtomicLong bytes = new AtomicLong();
+  private final Queue<String> failures = new ConcurrentLinkedQueue<String>();
+
+  // Creating a Transformer or a DocumentBuilder per file costs more than
+  // serializing or parsing a small one. Only the threads of the tool's own
+  // pool keep them, and those end with the run.
+  private static final ThreadLocal<Transformer> transformers = new ThreadLocal<Transformer>();
+  private static final ThreadLocal<DocumentBuilder> builders = new ThreadLocal<DocumentBuilder>();
+
+  private BulkTool(Map<String, String> options) throws Exception {
+    String mode = options.get("mode");
+    if (mode == null || !(mode.equals("sign") || mode.equals("validate"))) {
+      throw new IllegalArgumentException("--mode must be sign or validate");
+    }
+    signing = mode.equals("sign");
+    if (!options.containsKey("in")) {
+      throw new IllegalArgumentException("--in is required");
+    }
+    in = Paths.get(options.get("in"));
+    if (signing && !options.containsKey("out")) {
+      throw new IllegalArgumentException("--out is required to sign");
+    }
+    out = signing ? Paths.get(options.get("out")) : null;
+    if (out != null && out.toAbsolutePath().normalize().equals(in.toAbsolutePath().normalize())) {
+      throw new IllegalArgumentException("--out must differ from --in");
+    }
+    String signatureType = options.get("signature-type");
+    replaceSignatures = signatureType == null || signatureType.equalsIgnoreCase("enveloped");
+    force = Boolean.parseBoolean(options.get("force"));
+    engine = CommandLine.newEngine(options);
+    keyFingerprints = new HashSet<String>();
+    for (PrivateKey key : engine.getPrivateKeys()) {
+      keyFingerprints.add(XmlDsigEvents.fingerprint(key));
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    System.exit(run(args));
+  }
+
+  /** Runs with the given arguments, and returns the exit status. */
+  public static int run(String[] args) throws Exception {
+    Map<String, String> options = CommandLine.parse(args);
+    CommandLine.addProvider();
+    BulkTool tool = new BulkTool(options);
+    String pattern = options.containsKey("pattern") ? options.get("pattern") : "*.xml";
+    int threads =
+        CommandLine.getInt(options, "threads", Runtime.getRuntime().availableProcessors());
+    return tool.processAll(pattern, threads) ? 0 : 1;
+  }
+
+  // Walks the tree, handing each file to the pool as it is found, and prints
+  // the summary. Returns true when every file succeeded or was skipped.
+  private boolean processAll(String pattern, int threads)
+      throws IOException, InterruptedException {
+    final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    final Path outDir = (out != null) ? out.toAbsolutePath().normalize() : null;
+    long start = System.nanoTime();
+    try {
+      Files.walkFileTree(
+          in,
+          new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+              // an output directory inside the input tree holds no inputs
+              return (out != null && dir.toAbsolutePath().normalize().equals(outDir))
+                  ? FileVisitResult.SKIP_SUBTREE
+                  : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(final Path file, BasicFileAttributes attrs) {
+              if (attrs.isRegularFile() && matcher.matches(file.getFileName())) {
+                executor.execute(
+                    new Runnable() {
+                      public void run() {
+                        process(file);
+                      }
+                    });
+              }
+              return FileVisitResult.CONTINUE;
+            }
+          });
+    } finally {
+      executor.shutdown();
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    int processed = succeeded.get() + invalid.get() + failed.get();
+    System.out.printf(
+        "%d files, %s %d, %s%d skipped, %d failed, in %.2f s: %.1f files/s, %.2f MB/s\n",
+        processed + skipped.get(),
+        signing ? "signed" : "valid",
+        succeeded.get(),
+        signing ? "" : String.format("invalid %d, ", invalid.get()),
+        skipped.get(),
+        failed.get(),
+        seconds,
+        processed / seconds,
+        bytes.get() / seconds / 1e6);
+    for (String failure : failures) {
+      System.out.println("  " + failure);
+    }
+    int unlisted = failed.get() + invalid.get() - failures.size();
+    if (unlisted > 0) {
+      System.out.printf("  ... and %d more\n", unlisted);
+    }
+    return failed.get() == 0 && invalid.get() == 0;
+  }
+
+  private void process(Path file) {
+    try {
+      if (signing) {
+        Path target = out.resolve(in.relativize(file));
+        if (!force && isUpToDate(file, target)) {
+          skipped.incrementAndGet();
+          return;
+        }
+        Document doc = parse(file);
+        if (replaceSignatures) {
+          removeSignatures(doc);
+        }
+        engine.sign(doc);
+        write(doc, target);
+        succeeded.incrementAndGet();
+      } else {
+        if (engine.validate(parse(file))) {
+          succeeded.incrementAndGet();
+        } else {
+          invalid.incrementAndGet();
+          recordFailure(file, "signature is not valid");
+        }
+      }
+      bytes.addAndGet(Files.size(file));
+    } catch (Exception e) {
+      failed.incrementAndGet();
+      recordFailure(file, e.toString());
+    }
+  }
+
+  private void recordFailure(Path file, String message) {
+    if (failures.size() < MAX_REPORTED_FAILURES) {
+      failures.add(file + " " + message);
+    }
+  }
+
+  // An output is up to date when it is newer than its input and was signed
+  // by the keys of this run: after a key rotation the outputs are still newer
+  // than the inputs, but carry the old key's signatures.
+  private boolean isUpToDate(Path source, Path target) throws IOException {
+    return Files.exists(target)
+        && Files.getLastModifiedTime(target).compareTo(Files.getLastModifiedTime(source)) >= 0
+        && keyFingerprints.equals(signingKeysOf(target));
+  }
+
+  // The fingerprints of the keys in the KeyInfo of each Signature in the
+  // file, or null when the file does not parse or a KeyInfo does not carry
+  // the key itself, as with a thumbprint or an issuer and serial number. Such
+  // a file cannot be shown to be up to date, and is signed again.
+  private static Set<String> signingKeysOf(Path file) {
+    try {
+      NodeList nl =
+          parse(file).getElementsByTagNameNS(XMLSignature.XMLNS, "Signature");
+      if (nl.getLength() == 0) {
+        return null;
+      }
+      Set<String> fingerprints = new HashSet<String>();
+      for (int i = 0; i < nl.getLength(); i++) {
+        Element signature = (Element) nl.item(i);
+        PublicKey key = getKeyValue(signature);
+        if (key == null) {
+          List<X509Certificate> certificates = Verifier.getEmbeddedCertificates(signature);
+          if (certificates.isEmpty()) {
+            return null;
+          }
+          key = certificates.get(0).getPublicKey();
+        }
+        String fingerprint = XmlDsigEvents.fingerprint(key);
+        if (fingerprint.isEmpty()) {
+          return null;
+        }
+        fingerprints.add(fingerprint);
+      }
+      return fingerprints;
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  private static PublicKey getKeyValue(Element signature) throws GeneralSecurityException {
+    NodeList modulus = signature.getElementsByTagNameNS(XMLSignature.XMLNS, "Modulus");
+    NodeList exponent = signature.getElementsByTagNameNS(XMLSignature.XMLNS, "Exponent");
+    if (modulus.getLength() == 0 || exponent.getLength() == 0) {
+      return null;
+    }
+    Base64.Decoder decoder = Base64.getMimeDecoder();
+    BigInteger n = new BigInteger(1, decoder.decode(modulus.item(0).getTextContent()));
+    BigInteger e = new BigInteger(1, decoder.decode(exponent.item(0).getTextContent()));
+    return KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(n, e));
+  }
+
+  // The signatures of a previous key, so that an archive can be re-signed.
+  private static void removeSignatures(Document doc) {
+    Element root = doc.getDocumentElement();
+    Node n = root.getFirstChild();
+    while (n != null) {
+      Node next = n.getNextSibling();
+      if (n.getNodeType() == Node.ELEMENT_NODE
+          && XMLSignature.XMLNS.equals(n.getNamespaceURI())
+          && "Signature".equals(n.getLocalName())) {
+        root.removeChild(n);
+      }
+      n = next;
+    }
+  }
+
+  // Writes to a temporary file beside the target and moves it into place,
+  // so that an interrupted run never leaves a partial file that looks
+  // up to date.
+  private static void write(Document doc, Path target) throws Exception {
+    Path dir = target.toAbsolutePath().getParent();
+    Files.createDirectories(dir);
+    Path temp = Files.createTempFile(dir, ".xmldsig-", ".tmp");
+    try {
+      try (OutputStream os = Files.newOutputStream(temp)) {
+        transformer().transform(new DOMSource(doc), new StreamResult(os));
+      }
+      Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  private static Document parse(Path file) throws Exception {
+    DocumentBuilder builder = builders.get();
+    if (builder == null) {
+      builder = XmlUtils.newBuilder();
+      builders.set(builder);
+    }
+    return XmlUtils.parseXml(file, builder);
+  }
+
+  private static Transformer transformer() throws Exception {
+    Transformer transformer = transformers.get();
+    if (transformer == null) {
+      transformer = TransformerFactory.newInstance().newTransformer();
+      transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+      transformers.set(transformer);
+    }
+    return transformer;
+  }
+}
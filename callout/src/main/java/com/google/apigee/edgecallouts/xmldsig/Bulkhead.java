@@ -0,0 +1,281 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.edgecallouts.xmldsig;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of signing and validation operations running at once,
+ * for each key and overall, across all the callouts in this JVM. An operation
+ * over a limit waits, up to a bounded time, and is then refused, so that a
+ * burst of work for one key cannot occupy every message processor thread. The
+ * in-flight counts are shared; the limits are those of each caller, so
+ * policies with different limits can share a key. The counters are available
+ * through JMX, as com.google.apigee.xmldsig:type=Bulkhead.
+ */
+final class Bulkhead implements BulkheadMXBean {
+  static final String OVERALL = "*";
+  private static final int MAX_LANES = 256;
+  private static final String OTHER = "other";
+  private static final Bulkhead instance = new Bulkhead();
+
+  private final ConcurrentHashMap<String, Lane> lanes = new ConcurrentHashMap<String, Lane>();
+
+  /** Refused after waiting; the message names the limit that was reached. */
+  static final class Rejected extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+
+    Rejected(String message) {
+      super(message);
+    }
+  }
+
+  /** Held while the operation runs. */
+  static final class Permit {
+    private final List<Lane> keyLanes;
+    private final Lane overallLane;
+    final long waitNanos;
+    final int queueDepth; // operations already waiting, on arrival
+
+    private Permit(List<Lane> keyLanes, Lane overallLane, long waitNanos, int queueDepth) {
+      this.keyLanes = keyLanes;
+      this.overallLane = overallLane;
+      this.waitNanos = waitNanos;
+      this.queueDepth = queueDepth;
+    }
+
+    void release() {
+      if (overallLane != null) overallLane.release();
+      Bulkhead.release(keyLanes);
+    }
+  }
+
+  private static final class Lane {
+    private int active;
+    private int waiting;
+    private int maxWaiting;
+    private long admitted;
+    private long rejected;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+
+    // Returns the time waited, or -1 when the limit was not reached in time.
+    synchronized long acquire(int limit, long deadline) throws InterruptedException {
+      long start = System.nanoTime();
+      if (active < limit) {
+        active++;
+        admitted++;
+        return 0;
+      }
+      waiting++;
+      maxWaiting = Math.max(maxWaiting, waiting);
+      try {
+        long remaining = deadline - start;
+        while (active >= limit && remaining > 0) {
+          TimeUnit.NANOSECONDS.timedWait(this, remaining);
+          remaining = deadline - System.nanoTime();
+        }
+      } finally {
+        waiting--;
+      }
+      long waited = System.nanoTime() - start;
+      totalWaitNanos += waited;
+      maxWaitNanos = Math.max(maxWaitNanos, waited);
+      if (active >= limit) {
+        rejected++;
+        return -1;
+      }
+      active++;
+      admitted++;
+      return waited;
+    }
+
+    synchronized void release() {
+      active--;
+      // callers may have different limits, so wake them all to re-check
+      notifyAll();
+    }
+
+    synchronized int getWaiting() {
+      return waiting;
+    }
+  }
+
+  private Bulkhead() {
+    MBeans.register(this, "com.google.apigee.xmldsig:type=Bulkhead");
+  }
+
+
+  static Bulkhead getInstance() {
+    return instance;
+  }
+
+  private Lane lane(String name) {
+    Lane lane = lanes.get(name);
+    if (lane == null) {
+      if (lanes.size() >= MAX_LANES) {
+        name = OTHER;
+      }
+      Lane newLane = new Lane();
+      lane = lanes.putIfAbsent(name, newLane);
+      if (lane == null) lane = newLane;
+    }
+    return lane;
+  }
+
+  /**
+   * Waits up to waitMillis, in all, for a place under the limit for each of
+   * the keys and under the overall limit. A limit of zero or less does not
+   * apply. With several keys, as for multiple signers, the operation holds a
+   * place for each of them.
+   */
+  Permit acquire(
+      Collection<String> fingerprints, int perKeyLimit, int overallLimit, long waitMillis)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+    List<Lane> keyLanes = new ArrayList<Lane>();
+    int queueDepth = 0;
+    long waited = 0;
+    boolean acquired = false;
+    try {
+      // the keys first, so that a burst for one key queues without holding
+      // places under the overall limit; and in a fixed order, so that two
+      // operations that share keys do not each hold a place the other awaits
+      if (perKeyLimit > 0) {
+        for (String fingerprint : new TreeSet<String>(fingerprints)) {
+          Lane keyLane = lane(fingerprint);
+          if (keyLanes.contains(keyLane)) continue; // both in the overflow lane
+          queueDepth = Math.max(queueDepth, keyLane.getWaiting());
+          long keyWaited = keyLane.acquire(perKeyLimit, deadline);
+          if (keyWaited < 0) {
+            throw new Rejected("too many concurrent operations for key " + fingerprint);
+          }
+          keyLanes.add(keyLane);
+          waited += keyWaited;
+        }
+      }
+      Lane overallLane = null;
+      if (overallLimit > 0) {
+        overallLane = lane(OVERALL);
+        queueDepth = Math.max(queueDepth, overallLane.getWaiting());
+        long overallWaited = overallLane.acquire(overallLimit, deadline);
+        if (overallWaited < 0) {
+          throw new Rejected("too many concurrent operations");
+        }
+        waited += overallWaited;
+      }
+      acquired = true;
+      return new Permit(keyLanes, overallLane, waited, queueDepth);
+    } finally {
+      // rejected or interrupted: give back the places already taken
+      if (!acquired) release(keyLanes);
+    }
+  }
+
+  private static void release(List<Lane> keyLanes) {
+    for (Lane keyLane : keyLanes) {
+      keyLane.release();
+    }
+  }
+
+  public Map<String, Integer> getActiveCounts() {
+    Map<String, Integer> result = new TreeMap<String, Integer>();
+    for (Map.Entry<String, Lane> e : lanes.entrySet()) {
+      synchronized (e.getValue()) {
+        result.put(e.getKey(), e.getValue().active);
+      }
+    }
+    return result;
+  }
+
+  public Map<String, Integer> getQueueDepths() {
+    Map<String, Integer> result = new TreeMap<String, Integer>();
+    for (Map.Entry<String, Lane> e : lanes.entrySet()) {
+      result.put(e.getKey(), e.getValue().getWaiting());
+    }
+    return result;
+  }
+
+  public Map<String, Integer> getMaxQueueDepths() {
+    Map<String, Integer> result = new TreeMap<String, Integer>();
+    for (Map.Entry<String, Lane> e : lanes.entrySet()) {
+      synchronized (e.getValue()) {
+        result.put(e.getKey(), e.getValue().maxWaiting);
+      }
+    }
+    return result;
+  }
+
+  public Map<String, Long> getAdmittedCounts() {
+    Map<String, Long> result = new TreeMap<String, Long>();
+    for (Map.Entry<String, Lane> e : lanes.entrySet()) {
+      synchronized (e.getValue()) {
+        result.put(e.getKey(), e.getValue().admitted);
+      }
+    }
+    return result;
+  }
+
+  public Map<String, Long> getRejectedCounts() {
+    Map<String, Long> result = new TreeMap<String, Long>();
+    for (Map.Entry<String, Lane> e : lanes.entrySet()) {
+      synchronized (e.getValue()) {
+        result.put(e.getKey(), e.getValue().rejected);
+      }
+    }
+    return result;
+  }
+
+  public Map<String, Long> getTotalWaitMillis() {
+    Map<String, Long> result = new TreeMap<String, Long>();
+    for (Map.Entry<String, Lane> e : lanes.entrySet()) {
+      synchronized (e.getValue()) {
+        result.put(e.getKey(), TimeUnit.NANOSECONDS.toMillis(e.getValue().totalWaitNanos));
+      }
+    }
+    return result;
+  }
+
+  public Map<String, Long> getMaxWaitMillis() {
+    Map<String, Long> result = new TreeMap<String, Long>();
+    for (Map.Entry<String, Lane> e : lanes.entrySet()) {
+      synchronized (e.getValue()) {
+        result.put(e.getKey(), TimeUnit.NANOSECONDS.toMillis(e.getValue().maxWaitNanos));
+      }
+    }
+    return result;
+  }
+
+  // Clears the statistics; the counts of operations running or waiting stand.
+  public void reset() {
+    for (Lane lane : lanes.values()) {
+      synchronized (lane) {
+        lane.maxWaiting = lane.waiting;
+        lane.admitted = 0;
+        lane.rejected = 0;
+        lane.totalWaitNanos = 0;
+        lane.maxWaitNanos = 0;
+      }
+    }
+  }
+}
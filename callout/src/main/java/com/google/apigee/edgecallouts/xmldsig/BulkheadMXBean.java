@@ -0,0 +1,47 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.edgecallouts.xmldsig;
+
+import java.util.Map;
+
+/**
+ * The JMX view of the bulkhead. Each map is keyed by key fingerprint, with
+ * {@code *} for the overall limit.
+ */
+public interface BulkheadMXBean {
+  /** The number of operations running now. */
+  Map<String, Integer> getActiveCounts();
+
+  /** The number of operations waiting now. */
+  Map<String, Integer> getQueueDepths();
+
+  /** The most operations seen waiting at once. */
+  Map<String, Integer> getMaxQueueDepths();
+
+  /** The number of operations admitted. */
+  Map<String, Long> getAdmittedCounts();
+
+  /** The number of operations refused after waiting. */
+  Map<String, Long> getRejectedCounts();
+
+  /** The total time spent waiting, admitted or not, in milliseconds. */
+  Map<String, Long> getTotalWaitMillis();
+
+  /** The longest single wait, in milliseconds. */
+  Map<String, Long> getMaxWaitMillis();
+
+  void reset();
+}
@@ -0,0 +1,148 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.edgecallouts.xmldsig;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyException;
+import java.security.MessageDigest;
+import java.security.cert.CertPathBuilder;
+import java.security.cert.Certificate;
+import java.security.cert.CertStore;
+import java.security.cert.CollectionCertStoreParameters;
+import java.security.cert.PKIXBuilderParameters;
+import java.security.cert.PKIXCertPathBuilderResult;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509CertSelector;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Validates certificate chains against a fixed set of trust anchors, and
+ * remembers successful results per leaf certificate, until the earliest
+ * notAfter in the validated path or the configured TTL, whichever comes
+ * first. Instances are shared across requests that use the same anchors;
+ * the most recently used sets of anchors are kept.
+ */
+class CertificateChainValidator {
+  private static final int MAX_CACHE_ENTRIES = 10000;
+  private static final int MAX_VALIDATORS = 64;
+  // Least recently used first. The anchors may come from a flow variable, so
+  // the number of distinct sets is not known in advance.
+  private static final Map<String, CertificateChainValidator> validators =
+      Collections.synchronizedMap(
+          new LinkedHashMap<String, CertificateChainValidator>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                Map.Entry<String, CertificateChainValidator> eldest) {
+              return size() > MAX_VALIDATORS;
+            }
+          });
+
+  private final Set<TrustAnchor> trustAnchors;
+  // key: leaf thumbprint, value: time in millis at which the result expires
+  private final ConcurrentHashMap<String, Long> validatedUntil =
+      new ConcurrentHashMap<String, Long>();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  private CertificateChainValidator(List<X509Certificate> anchors) {
+    Set<TrustAnchor> set = new HashSet<TrustAnchor>();
+    for (X509Certificate anchor : anchors) {
+      set.add(new TrustAnchor(anchor, null));
+    }
+    this.trustAnchors = Collections.unmodifiableSet(set);
+  }
+
+  static CertificateChainValidator forTrustAnchors(String trustAnchorsPem) throws KeyException {
+    CertificateChainValidator validator = validators.get(trustAnchorsPem);
+    if (validator == null) {
+      CertificateChainValidator newValidator =
+          new CertificateChainValidator(Keys.certificatesFromPEM(trustAnchorsPem));
+      validator = validators.putIfAbsent(trustAnchorsPem, newValidator);
+      if (validator == null) validator = newValidator;
+    }
+    return validator;
+  }
+
+  long getHits() {
+    return hits.get();
+  }
+
+  long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Returns true if the result came from the cache. Throws if the chain
+   * cannot be built to one of the trust anchors.
+   */
+  boolean validate(X509Certificate leaf, List<X509Certificate> intermediates, long ttlMillis)
+      throws GeneralSecurityException {
+    String thumbprint =
+        Base64.getEncoder()
+            .encodeToString(MessageDigest.getInstance("SHA-256").digest(leaf.getEncoded()));
+    long now = System.currentTimeMillis();
+    Long expiry = validatedUntil.get(thumbprint);
+    if (expiry != null && expiry > now) {
+      hits.incrementAndGet();
+      return true;
+    }
+    misses.incrementAndGet();
+
+    X509CertSelector selector = new X509CertSelector();
+    selector.setCertificate(leaf);
+    PKIXBuilderParameters params = new PKIXBuilderParameters(trustAnchors, selector);
+    params.setRevocationEnabled(false);
+    List<X509Certificate> certs = new ArrayList<X509Certificate>(intermediates);
+    certs.add(leaf);
+    params.addCertStore(
+        CertStore.getInstance("Collection", new CollectionCertStoreParameters(certs)));
+    PKIXCertPathBuilderResult result =
+        (PKIXCertPathBuilderResult) CertPathBuilder.getInstance("PKIX").build(params);
+
+    long notAfter = result.getTrustAnchor().getTrustedCert().getNotAfter().getTime();
+    for (Certificate c : result.getCertPath().getCertificates()) {
+      notAfter = Math.min(notAfter, ((X509Certificate) c).getNotAfter().getTime());
+    }
+    if (validatedUntil.size() >= MAX_CACHE_ENTRIES) {
+      purge(now);
+    }
+    validatedUntil.put(thumbprint, Math.min(notAfter, now + ttlMillis));
+    return false;
+  }
+
+  private void purge(long now) {
+    for (Map.Entry<String, Long> entry : validatedUntil.entrySet()) {
+      if (entry.getValue() <= now) {
+        validatedUntil.remove(entry.getKey(), entry.getValue());
+      }
+    }
+    if (validatedUntil.size() >= MAX_CACHE_ENTRIES) {
+      validatedUntil.clear();
+    }
+  }
+}
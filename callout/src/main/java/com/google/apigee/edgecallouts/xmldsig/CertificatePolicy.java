@@ -0,0 +1,80 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.edgecallouts.xmldsig;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The checks applied to a signer's certificate: that it chains to one of the
+ * trust-anchors, and that it is not in any of the crl-files. The validator
+ * and the index are looked up for each check, as each keeps its own cache,
+ * and an index that has been evicted is no longer refreshed.
+ */
+final class CertificatePolicy {
+  private final String trustAnchorsPem;
+  private final long cacheTtlMillis;
+  private final String crlFiles;
+  private final long crlRefreshSeconds;
+
+  /** Either the anchors or the files may be null, but not both. */
+  CertificatePolicy(
+      String trustAnchorsPem, long cacheTtlSeconds, String crlFiles, long crlRefreshSeconds) {
+    this.trustAnchorsPem = trustAnchorsPem;
+    this.cacheTtlMillis = cacheTtlSeconds * 1000L;
+    this.crlFiles = crlFiles;
+    this.crlRefreshSeconds = crlRefreshSeconds;
+  }
+
+  boolean hasTrustAnchors() {
+    return trustAnchorsPem != null;
+  }
+
+  // Throws if the certificate does not chain to an anchor, or has been
+  // revoked. Reports the outcome of the chain check in details.
+  void check(
+      X509Certificate leaf, List<X509Certificate> intermediates, Map<String, Object> details)
+      throws IOException, GeneralSecurityException {
+    if (trustAnchorsPem != null) {
+      checkChain(leaf, intermediates, details);
+    }
+    if (crlFiles != null
+        && RevocationIndex.forFiles(crlFiles, crlRefreshSeconds).isRevoked(leaf)) {
+      throw new IllegalStateException("certificate has been revoked");
+    }
+  }
+
+  // Successful results are cached; see CertificateChainValidator.
+  private void checkChain(
+      X509Certificate leaf, List<X509Certificate> intermediates, Map<String, Object> details)
+      throws GeneralSecurityException {
+    CertificateChainValidator validator =
+        CertificateChainValidator.forTrustAnchors(trustAnchorsPem);
+    long start = System.nanoTime();
+    try {
+      details.put("cert_chain_cache_hit", validator.validate(leaf, intermediates, cacheTtlMillis));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("certificate chain validation failed", e);
+    } finally {
+      details.put("cert_chain_validation_micros", (System.nanoTime() - start) / 1000L);
+      details.put("cert_chain_cache_hits", validator.getHits());
+      details.put("cert_chain_cache_misses", validator.getMisses());
+    }
+  }
+}
@@ -0,0 +1,106 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.edgecallouts.xmldsig;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.Security;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The options shared by the command-line entry points: {@code --name value}
+ * pairs, named as the policy properties, with file paths in place of PEM
+ * strings.
+ */
+final class CommandLine {
+  private CommandLine() {}
+
+  static Map<String, String> parse(String[] args) {
+    Map<String, String> options = new HashMap<String, String>();
+    for (int i = 0; i < args.length; i += 2) {
+      if (!args[i].startsWith("--") || i + 1 == args.length) {
+        throw new IllegalArgumentException("expected an option and value, found " + args[i]);
+      }
+      options.put(args[i].substring(2), args[i + 1]);
+    }
+    return options;
+  }
+
+  // The PEM readers use the BouncyCastle provider, which Apigee registers.
+  static void addProvider() {
+    if (Security.getProvider("BC") == null) {
+      Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
+    }
+  }
+
+  static XmlDsigEngine newEngine(Map<String, String> options) throws Exception {
+    XmlDsigEngine.Builder builder = XmlDsigEngine.newBuilder();
+    if (options.containsKey("private-key")) {
+      builder.withPrivateKeyPem(
+          readFile(options.get("private-key")), options.get("private-key-password"));
+    }
+    if (options.containsKey("certificate")) {
+      builder.withCertificate(
+          Keys.certificatesFromPEM(readFile(options.get("certificate"))).get(0));
+    }
+    if (options.containsKey("public-key")) {
+      builder.withPublicKeyPem(readFile(options.get("public-key")));
+    }
+    if (options.containsKey("public-keys")) {
+      builder.withPublicKeys(readFile(options.get("public-keys")));
+    }
+    if (options.containsKey("signing-method")) {
+      builder.withSigningMethod(options.get("signing-method"));
+    }
+    if (options.containsKey("digest-method")) {
+      builder.withDigestMethod(options.get("digest-method"));
+    }
+    if (options.containsKey("key-identifier-type")) {
+      builder.withKeyIdentifierType(options.get("key-identifier-type"));
+    }
+    if (options.containsKey("issuer-name-style")) {
+      builder.withIssuerNameStyle(options.get("issuer-name-style"));
+    }
+    if (options.containsKey("signature-type")) {
+      builder.withSignatureType(options.get("signature-type"));
+    }
+    if (options.containsKey("expiry")) {
+      builder.withExpiry(getInt(options, "expiry", 0));
+    }
+    if (options.containsKey("signature-location")) {
+      builder.withSignatureLocation(
+          options.get("signature-location"), options.get("signature-location-namespaces"));
+    }
+    return builder.build();
+  }
+
+  static String readFile(String path) throws IOException {
+    return new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8);
+  }
+
+  static int getInt(Map<String, String> options, String name, int defaultValue) {
+    String value = options.get(name);
+    if (value == null) return defaultValue;
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException nfe) {
+      throw new IllegalStateException("invalid " + name);
+    }
+  }
+}
@@ -0,0 +1,53 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.edgecallouts.xmldsig;
+
+import java.io.InputStream;
+import javax.xml.crypto.Data;
+import javax.xml.crypto.OctetStreamData;
+import javax.xml.crypto.URIDereferencer;
+import javax.xml.crypto.URIReference;
+import javax.xml.crypto.URIReferenceException;
+import javax.xml.crypto.XMLCryptoContext;
+
+/**
+ * Resolves the external Reference of a detached signature to the supplied
+ * content stream, so the payload bytes flow straight into the digest.
+ * Same-document references are passed to the default dereferencer.
+ */
+class DetachedContentDereferencer implements URIDereferencer {
+  private final String uri; // null means any external URI
+  private final InputStream content;
+  private final URIDereferencer defaultDereferencer;
+
+  DetachedContentDereferencer(
+      String uri, InputStream content, URIDereferencer defaultDereferencer) {
+    this.uri = uri;
+    this.content = content;
+    this.defaultDereferencer = defaultDereferencer;
+  }
+
+  public Data dereference(URIReference uriReference, XMLCryptoContext context)
+      throws URIReferenceException {
+    String referenceUri = uriReference.getURI();
+    boolean isExternal =
+        referenceUri != null && !referenceUri.equals("") && !referenceUri.startsWith("#");
+    if (isExternal && (uri == null || uri.equals(referenceUri))) {
+      return new OctetStreamData(content, referenceUri, null);
+    }
+    return defaultDereferencer.dereference(uriReference, context);
+  }
+}
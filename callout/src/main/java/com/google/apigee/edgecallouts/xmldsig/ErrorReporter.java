@@ -0,0 +1,199 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.edgecallouts.xmldsig;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the errors of the callouts without blocking the calling thread.
+ * Each error increments a counter for its exception class, and the first few
+ * distinct messages of each class are kept as samples. Log lines go through a
+ * bounded queue to a single background writer, and are limited to a fixed
+ * number per second; beyond that, or when the queue is full, they are dropped
+ * and counted. The writer is started on demand, and stops once the queue has
+ * been empty for a minute, so that an idle or undeployed callout keeps no
+ * thread; shutdown stops it for good. The counters are available through JMX,
+ * as com.google.apigee.xmldsig:type=ErrorReporter.
+ */
+final class ErrorReporter implements ErrorReporterMXBean {
+  private static final int QUEUE_CAPACITY = 1024;
+  private static final int MAX_LINES_PER_SECOND = 50;
+  private static final int MAX_SAMPLES_PER_CLASS = 5;
+  private static final int MAX_CLASSES = 256;
+  private static final long WRITER_IDLE_SECONDS = 60L;
+  private static final ErrorReporter instance = new ErrorReporter();
+
+  private final BlockingQueue<String> queue = new ArrayBlockingQueue<String>(QUEUE_CAPACITY);
+  private final ConcurrentHashMap<String, AtomicLong> counts =
+      new ConcurrentHashMap<String, AtomicLong>();
+  private final ConcurrentHashMap<String, Set<String>> samples =
+      new ConcurrentHashMap<String, Set<String>>();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong windowStart = new AtomicLong();
+  private final AtomicInteger linesInWindow = new AtomicInteger();
+  private final AtomicBoolean writing = new AtomicBoolean();
+  private volatile Thread writer;
+  private volatile boolean shutdown;
+
+  private ErrorReporter() {
+    MBeans.register(this, "com.google.apigee.xmldsig:type=ErrorReporter");
+  }
+
+  static ErrorReporter getInstance() {
+    return instance;
+  }
+
+  /** Records the error, and returns the count so far for its class. */
+  long report(Exception exc1, String error) {
+    String errorClass = exc1.getClass().getName();
+    AtomicLong count = counts.get(errorClass);
+    if (count == null) {
+      if (counts.size() >= MAX_CLASSES) {
+        errorClass = "other";
+      }
+      AtomicLong newCount = new AtomicLong();
+      count = counts.putIfAbsent(errorClass, newCount);
+      if (count == null) count = newCount;
+    }
+    long n = count.incrementAndGet();
+
+    Set<String> messages = samples.get(errorClass);
+    if (messages == null) {
+      Set<String> newMessages = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+      messages = samples.putIfAbsent(errorClass, newMessages);
+      if (messages == null) messages = newMessages;
+    }
+    if (messages.size() < MAX_SAMPLES_PER_CLASS) {
+      messages.add(error);
+    }
+
+    if (shutdown || !tryAcquireLine() || !queue.offer("Exception: " + error)) {
+      dropped.incrementAndGet();
+    } else {
+      startWriter();
+    }
+    return n;
+  }
+
+  // A fixed window of one second; cheap, and good enough to bound the output.
+  private boolean tryAcquireLine() {
+    long now = System.nanoTime() / 1000000000L;
+    long start = windowStart.get();
+    if (now != start && windowStart.compareAndSet(start, now)) {
+      linesInWindow.set(0);
+    }
+    return linesInWindow.incrementAndGet() <= MAX_LINES_PER_SECOND;
+  }
+
+  private void startWriter() {
+    if (!writing.compareAndSet(false, true)) {
+      return;
+    }
+    Thread t =
+        new Thread(
+            new Runnable() {
+              public void run() {
+                drain();
+              }
+            },
+            "xmldsig-error-reporter");
+    t.setDaemon(true);
+    writer = t;
+    t.start();
+  }
+
+  private void drain() {
+    try {
+      while (!shutdown) {
+        String line = queue.poll(WRITER_IDLE_SECONDS, TimeUnit.SECONDS);
+        if (line != null) {
+          System.out.println(line);
+          continue;
+        }
+        writing.set(false);
+        // a line queued just before the flag was cleared found the writer
+        // running, so it is this thread's to write, unless another has started
+        if (queue.isEmpty() || !writing.compareAndSet(false, true)) {
+          return;
+        }
+      }
+    } catch (InterruptedException e) {
+      // shut down
+    }
+  }
+
+  /** A one-line summary of the counts and samples, for a flow variable. */
+  String getSummary() {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, Long> e : getErrorCounts().entrySet()) {
+      if (sb.length() > 0) sb.append("; ");
+      sb.append(e.getKey()).append('=').append(e.getValue());
+      Set<String> messages = samples.get(e.getKey());
+      if (messages != null) {
+        sb.append(' ').append(messages);
+      }
+    }
+    sb.append("; dropped=").append(dropped.get());
+    return sb.toString();
+  }
+
+  public Map<String, Long> getErrorCounts() {
+    Map<String, Long> result = new TreeMap<String, Long>();
+    for (Map.Entry<String, AtomicLong> e : counts.entrySet()) {
+      result.put(e.getKey(), e.getValue().get());
+    }
+    return result;
+  }
+
+  public Map<String, List<String>> getSampleMessages() {
+    Map<String, List<String>> result = new TreeMap<String, List<String>>();
+    for (Map.Entry<String, Set<String>> e : samples.entrySet()) {
+      result.put(e.getKey(), new ArrayList<String>(e.getValue()));
+    }
+    return result;
+  }
+
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  public void reset() {
+    counts.clear();
+    samples.clear();
+    dropped.set(0);
+  }
+
+  public void shutdown() {
+    shutdown = true;
+    Thread t = writer;
+    if (t != null) {
+      t.interrupt();
+    }
+    queue.clear();
+  }
+}
@@ -0,0 +1,39 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.edgecallouts.xmldsig;
+
+import java.util.List;
+import java.util.Map;
+
+/** The JMX view of the errors reported by the callouts. */
+public interface ErrorReporterMXBean {
+  /** The number of errors, by exception class. */
+  Map<String, Long> getErrorCounts();
+
+  /** Up to a few distinct messages, by exception class. */
+  Map<String, List<String>> getSampleMessages();
+
+  /** The number of log lines dropped because the queue was full or the rate was exceeded. */
+  long getDroppedCount();
+
+  void reset();
+
+  /**
+   * Stops the background writer; later log lines are dropped and counted. The
+   * counters are still kept.
+   */
+  void shutdown();
+}
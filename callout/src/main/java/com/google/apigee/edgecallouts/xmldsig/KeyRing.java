@@ -0,0 +1,316 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.edgecallouts.xmldsig;
+
+import com.google.apigee.util.Json;
+import java.io.IOException;
+import java.io.StringReader;
+import java.math.BigInteger;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.xml.crypto.dsig.XMLSignature;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.asn1.x9.X9ObjectIdentifiers;
+import org.bouncycastle.openssl.PEMParser;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * A set of RSA and EC public keys, indexed by RSA modulus, by EC point and by
+ * key name, so that the key for a signed document can be found from its
+ * KeyInfo without trying each key in turn. The ring is specified either as a
+ * sequence of PEM-encoded public keys, or as a JWKS document, in which case
+ * the kid of each key is its KeyName. Parsed rings are cached by their
+ * specification.
+ */
+class KeyRing {
+  private static final String XMLDSIG11 = "http://www.w3.org/2009/xmldsig11#";
+  private static final int MAX_CACHED_RINGS = 64;
+  private static final ConcurrentHashMap<String, KeyRing> rings =
+      new ConcurrentHashMap<String, KeyRing>();
+  private static final Map<String, String> jwkCurves = new HashMap<String, String>();
+
+  static {
+    jwkCurves.put("P-256", "secp256r1");
+    jwkCurves.put("P-384", "secp384r1");
+    jwkCurves.put("P-521", "secp521r1");
+  }
+
+  private final List<PublicKey> keys;
+  private final Map<BigInteger, PublicKey> byModulus;
+  private final Map<String, PublicKey> byPoint;
+  private final Map<String, PublicKey> byName;
+
+  private KeyRing(List<PublicKey> keys, Map<String, PublicKey> byName) {
+    this.keys = Collections.unmodifiableList(keys);
+    Map<BigInteger, PublicKey> modulusIndex = new HashMap<BigInteger, PublicKey>();
+    Map<String, PublicKey> pointIndex = new HashMap<String, PublicKey>();
+    for (PublicKey key : keys) {
+      if (key instanceof RSAPublicKey) {
+        modulusIndex.put(((RSAPublicKey) key).getModulus(), key);
+      } else {
+        pointIndex.put(encodePoint((ECPublicKey) key), key);
+      }
+    }
+    this.byModulus = Collections.unmodifiableMap(modulusIndex);
+    this.byPoint = Collections.unmodifiableMap(pointIndex);
+    this.byName = Collections.unmodifiableMap(byName);
+  }
+
+  static KeyRing fromString(final String spec) throws Exception {
+    return new XmlDsigEvents.Timed<XmlDsigEvents.KeyLoadEvent, KeyRing>() {
+      KeyRing run() throws Exception {
+        KeyRing ring = rings.get(spec);
+        if (ring == null) {
+          String trimmed = spec.trim();
+          ring = trimmed.startsWith("{") ? fromJwks(trimmed) : fromPem(trimmed);
+          if (rings.size() >= MAX_CACHED_RINGS) {
+            rings.clear();
+          }
+          rings.put(spec, ring);
+        }
+        return ring;
+      }
+
+      void describe(XmlDsigEvents.KeyLoadEvent event, KeyRing ring) {
+        XmlDsigEvents.describeKeys(event, "public-keys", (ring != null) ? ring.keys : null);
+      }
+    }.in(XmlDsigEvents.newKeyLoadEvent());
+  }
+
+  List<PublicKey> getKeys() {
+    return keys;
+  }
+
+  static class Selection {
+    final PublicKey key;
+    final String matchedBy;
+
+    Selection(PublicKey key, String matchedBy) {
+      this.key = key;
+      this.matchedBy = matchedBy;
+    }
+  }
+
+  /**
+   * Returns the key identified by the KeyInfo of the signature, or null. Only
+   * the KeyInfo is read: a ds:Object in the Signature may hold any content.
+   */
+  Selection select(Element signatureElement) throws GeneralSecurityException {
+    Element keyInfo = firstChild(signatureElement, XMLSignature.XMLNS, "KeyInfo");
+    if (keyInfo == null) {
+      return null;
+    }
+    String name = firstText(keyInfo, XMLSignature.XMLNS, "KeyName");
+    if (name != null && byName.containsKey(name.trim())) {
+      return new Selection(byName.get(name.trim()), "KeyName");
+    }
+    String modulus = firstText(keyInfo, XMLSignature.XMLNS, "Modulus");
+    if (modulus != null) {
+      PublicKey key = byModulus.get(new BigInteger(1, Base64.getMimeDecoder().decode(modulus)));
+      if (key != null) {
+        return new Selection(key, "RSAKeyValue");
+      }
+    }
+    String point = firstText(keyInfo, XMLDSIG11, "PublicKey");
+    if (point != null) {
+      PublicKey key =
+          byPoint.get(Base64.getEncoder().encodeToString(Base64.getMimeDecoder().decode(point)));
+      if (key != null) {
+        return new Selection(key, "ECKeyValue");
+      }
+    }
+    List<X509Certificate> certificates = Verifier.getEmbeddedCertificates(signatureElement);
+    if (certificates.size() > 0) {
+      PublicKey key = find(certificates.get(0).getPublicKey());
+      if (key != null) {
+        return new Selection(key, "X509Certificate");
+      }
+    }
+    return null;
+  }
+
+  private PublicKey find(PublicKey key) {
+    if (key instanceof RSAPublicKey) {
+      return byModulus.get(((RSAPublicKey) key).getModulus());
+    }
+    if (key instanceof ECPublicKey) {
+      return byPoint.get(encodePoint((ECPublicKey) key));
+    }
+    return null;
+  }
+
+  // The uncompressed point, as in the PublicKey of an ECKeyValue.
+  private static String encodePoint(ECPublicKey key) {
+    int size = (key.getParams().getCurve().getField().getFieldSize() + 7) / 8;
+    byte[] encoded = new byte[1 + 2 * size];
+    encoded[0] = 4;
+    copyUnsigned(key.getW().getAffineX(), encoded, 1, size);
+    copyUnsigned(key.getW().getAffineY(), encoded, 1 + size, size);
+    return Base64.getEncoder().encodeToString(encoded);
+  }
+
+  private static void copyUnsigned(BigInteger n, byte[] dest, int offset, int size) {
+    byte[] bytes = n.toByteArray();
+    int skip = (bytes.length > size) ? bytes.length - size : 0;
+    System.arraycopy(bytes, skip, dest, offset + size - (bytes.length - skip), bytes.length - skip);
+  }
+
+  private static Element firstChild(Element parent, String namespaceUri, String localName) {
+    for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+      if (n.getNodeType() == Node.ELEMENT_NODE
+          && namespaceUri.equals(n.getNamespaceURI())
+          && localName.equals(n.getLocalName())) {
+        return (Element) n;
+      }
+    }
+    return null;
+  }
+
+  private static String firstText(Element keyInfo, String namespaceUri, String localName) {
+    NodeList nl = keyInfo.getElementsByTagNameNS(namespaceUri, localName);
+    return (nl.getLength() == 0) ? null : nl.item(0).getTextContent();
+  }
+
+  private static KeyRing fromPem(String spec) throws IOException, GeneralSecurityException {
+    List<PublicKey> keys = new ArrayList<PublicKey>();
+    PEMParser pr = new PEMParser(new StringReader(Keys.reformIndents(spec)));
+    try {
+      Object o;
+      while ((o = pr.readObject()) != null) {
+        if (!(o instanceof SubjectPublicKeyInfo)) {
+          throw new IllegalStateException("Didn't find an RSA Public Key");
+        }
+        keys.add(toPublicKey((SubjectPublicKeyInfo) o));
+      }
+    } finally {
+      pr.close();
+    }
+    if (keys.size() == 0) {
+      throw new IllegalStateException("public-keys contains no keys");
+    }
+    return new KeyRing(keys, new HashMap<String, PublicKey>());
+  }
+
+  // Keys of the default providers, as Java 17 rejects the "ECDSA" keys of
+  // BouncyCastle; see Keys.readPublicKey.
+  private static PublicKey toPublicKey(SubjectPublicKeyInfo info)
+      throws IOException, GeneralSecurityException {
+    ASN1ObjectIdentifier algorithm = info.getAlgorithm().getAlgorithm();
+    String keyType =
+        algorithm.equals(PKCSObjectIdentifiers.rsaEncryption)
+            ? "RSA"
+            : algorithm.equals(X9ObjectIdentifiers.id_ecPublicKey) ? "EC" : null;
+    if (keyType == null) {
+      throw new IllegalStateException("public-keys contains a key that is neither RSA nor EC");
+    }
+    return KeyFactory.getInstance(keyType)
+        .generatePublic(new X509EncodedKeySpec(info.getEncoded()));
+  }
+
+  // Keys of other types, and those for encryption only, are ignored.
+  private static KeyRing fromJwks(String spec) throws GeneralSecurityException {
+    List<PublicKey> keys = new ArrayList<PublicKey>();
+    Map<String, PublicKey> byName = new HashMap<String, PublicKey>();
+    Object jwks;
+    try {
+      jwks = Json.parse(spec);
+    } catch (Json.ParseException e) {
+      throw new IllegalStateException("public-keys is not valid JSON", e);
+    }
+    Object jwkList = (jwks instanceof Map) ? ((Map<?, ?>) jwks).get("keys") : null;
+    if (!(jwkList instanceof List)) {
+      throw new IllegalStateException("public-keys has no keys array");
+    }
+    for (Object jwk : (List<?>) jwkList) {
+      if (!(jwk instanceof Map)) {
+        throw new IllegalStateException("public-keys holds a key that is not an object");
+      }
+      Map<?, ?> fields = (Map<?, ?>) jwk;
+      if ("enc".equals(fields.get("use"))) {
+        continue;
+      }
+      PublicKey key = toPublicKey(fields);
+      if (key == null) {
+        continue;
+      }
+      keys.add(key);
+      if (fields.get("kid") instanceof String) {
+        byName.put((String) fields.get("kid"), key);
+      }
+    }
+    if (keys.size() == 0) {
+      throw new IllegalStateException("public-keys contains no RSA or EC keys");
+    }
+    return new KeyRing(keys, byName);
+  }
+
+  // Returns null for a key type other than RSA and EC.
+  private static PublicKey toPublicKey(Map<?, ?> jwk) throws GeneralSecurityException {
+    Object kty = jwk.get("kty");
+    if ("RSA".equals(kty)) {
+      return KeyFactory.getInstance("RSA")
+          .generatePublic(new RSAPublicKeySpec(getUnsigned(jwk, "n"), getUnsigned(jwk, "e")));
+    }
+    if ("EC".equals(kty)) {
+      String curve = jwkCurves.get(jwk.get("crv"));
+      if (curve == null) {
+        throw new IllegalStateException("public-keys holds an EC key on an unsupported curve");
+      }
+      AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+      parameters.init(new ECGenParameterSpec(curve));
+      ECPoint point = new ECPoint(getUnsigned(jwk, "x"), getUnsigned(jwk, "y"));
+      return KeyFactory.getInstance("EC")
+          .generatePublic(
+              new ECPublicKeySpec(point, parameters.getParameterSpec(ECParameterSpec.class)));
+    }
+    return null;
+  }
+
+  private static BigInteger getUnsigned(Map<?, ?> jwk, String name) {
+    Object value = jwk.get(name);
+    if (!(value instanceof String)) {
+      throw new IllegalStateException(
+          "public-keys holds a " + jwk.get("kty") + " key without " + name);
+    }
+    try {
+      return new BigInteger(1, Base64.getUrlDecoder().decode((String) value));
+    } catch (IllegalArgumentException e) {
+      throw new IllegalStateException("public-keys holds a key with an invalid " + name, e);
+    }
+  }
+}
@@ -0,0 +1,257 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.edgecallouts.xmldsig;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.regex.Pattern;
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import javax.security.auth.x500.X500Principal;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
+import org.bouncycastle.asn1.pkcs.RSAPublicKey;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.asn1.x9.X9ObjectIdentifiers;
+import org.bouncycastle.openssl.PEMDecryptorProvider;
+import org.bouncycastle.openssl.PEMEncryptedKeyPair;
+import org.bouncycastle.openssl.PEMKeyPair;
+import org.bouncycastle.openssl.PEMParser;
+import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
+import org.bouncycastle.openssl.jcajce.JceOpenSSLPKCS8DecryptorProviderBuilder;
+import org.bouncycastle.openssl.jcajce.JcePEMDecryptorProviderBuilder;
+import org.bouncycastle.operator.InputDecryptorProvider;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.pkcs.PKCS8EncryptedPrivateKeyInfo;
+import org.bouncycastle.pkcs.PKCSException;
+
+/** Reads PEM-encoded keys and certificates, and describes certificates. */
+final class Keys {
+  private static final Pattern indentPattern = Pattern.compile("([\\r|\\n|\\r\\n] *)");
+  private static final char[] hexDigits = "0123456789abcdef".toCharArray();
+
+  private Keys() {}
+
+  // Clears any leading whitespace on each line, as left by indenting the
+  // PEM in a policy.
+  static String reformIndents(String s) {
+    return indentPattern.matcher(s.trim()).replaceAll("\n");
+  }
+
+  static PrivateKey readPrivateKey(String privateKeyPemString, String password)
+      throws IOException, OperatorCreationException, PKCSException, InvalidKeySpecException,
+          NoSuchAlgorithmException {
+    if (privateKeyPemString == null) {
+      throw new IllegalStateException("PEM String is null");
+    }
+    if (password == null) password = "";
+
+    PEMParser pr = null;
+    try {
+      pr = new PEMParser(new StringReader(privateKeyPemString));
+      Object o = pr.readObject();
+
+      if (o == null) {
+        throw new IllegalStateException("Parsed object is null.  Bad input.");
+      }
+      return toJdkKey(toPrivateKey(o, password));
+    } finally {
+      if (pr != null) {
+        pr.close();
+      }
+    }
+  }
+
+  // Reads each of the concatenated PEM-encoded keys, in order. All of them
+  // are decrypted with the same password, if encrypted.
+  static List<PrivateKey> readPrivateKeys(String privateKeysPemString, String password)
+      throws IOException, OperatorCreationException, PKCSException, InvalidKeySpecException,
+          NoSuchAlgorithmException {
+    if (password == null) password = "";
+    List<PrivateKey> keys = new ArrayList<PrivateKey>();
+    PEMParser pr = null;
+    try {
+      pr = new PEMParser(new StringReader(privateKeysPemString));
+      Object o;
+      while ((o = pr.readObject()) != null) {
+        keys.add(toJdkKey(toPrivateKey(o, password)));
+      }
+    } finally {
+      if (pr != null) {
+        pr.close();
+      }
+    }
+    if (keys.size() == 0) {
+      throw new IllegalStateException("Parsed object is null.  Bad input.");
+    }
+    return keys;
+  }
+
+  // BouncyCastle names its EC keys "ECDSA". The EC provider of Java 17 and
+  // later accepts only keys named "EC", and is the one the XMLDSig provider
+  // finds first, so EC keys are converted to keys of the default provider.
+  private static PrivateKey toJdkKey(PrivateKey key)
+      throws NoSuchAlgorithmException, InvalidKeySpecException {
+    if (!key.getAlgorithm().equals("ECDSA")) return key;
+    return KeyFactory.getInstance("EC").generatePrivate(new PKCS8EncodedKeySpec(key.getEncoded()));
+  }
+
+  private static PrivateKey toPrivateKey(Object o, String password)
+      throws IOException, OperatorCreationException, PKCSException {
+    if (!((o instanceof PEMEncryptedKeyPair)
+        || (o instanceof PKCS8EncryptedPrivateKeyInfo)
+        || (o instanceof PrivateKeyInfo)
+        || (o instanceof PEMKeyPair))) {
+      throw new IllegalStateException(
+          "Didn't find OpenSSL key. Found: " + o.getClass().getName());
+    }
+
+    JcaPEMKeyConverter converter = new JcaPEMKeyConverter().setProvider("BC");
+
+    if (o instanceof PEMKeyPair) {
+      // eg, "openssl genrsa -out keypair-rsa-2048-unencrypted.pem 2048"
+      return converter.getPrivateKey(((PEMKeyPair) o).getPrivateKeyInfo());
+    }
+
+    if (o instanceof PrivateKeyInfo) {
+      // eg, "openssl genpkey  -algorithm rsa -pkeyopt rsa_keygen_bits:2048 -out keypair.pem"
+      return converter.getPrivateKey((PrivateKeyInfo) o);
+    }
+
+    if (o instanceof PKCS8EncryptedPrivateKeyInfo) {
+      // eg, "openssl genpkey -algorithm rsa -aes-128-cbc -pkeyopt rsa_keygen_bits:2048 -out
+      // private-encrypted.pem"
+      PKCS8EncryptedPrivateKeyInfo pkcs8EncryptedPrivateKeyInfo = (PKCS8EncryptedPrivateKeyInfo) o;
+      JceOpenSSLPKCS8DecryptorProviderBuilder decryptorProviderBuilder =
+          new JceOpenSSLPKCS8DecryptorProviderBuilder();
+      InputDecryptorProvider decryptorProvider =
+          decryptorProviderBuilder.build(password.toCharArray());
+      PrivateKeyInfo privateKeyInfo =
+          pkcs8EncryptedPrivateKeyInfo.decryptPrivateKeyInfo(decryptorProvider);
+      return converter.getPrivateKey(privateKeyInfo);
+    }
+
+    // PEMEncryptedKeyPair
+    // eg, "openssl genrsa -aes256 -out private-encrypted-aes-256-cbc.pem 2048"
+    PEMDecryptorProvider decProv =
+        new JcePEMDecryptorProviderBuilder().setProvider("BC").build(password.toCharArray());
+    KeyPair keyPair = converter.getKeyPair(((PEMEncryptedKeyPair) o).decryptKeyPair(decProv));
+    return keyPair.getPrivate();
+  }
+
+  static PublicKey readPublicKey(String publicKeyPemString)
+      throws NoSuchAlgorithmException, InvalidKeySpecException, IOException {
+    PEMParser pr = new PEMParser(new StringReader(publicKeyPemString));
+    Object o = pr.readObject();
+    if (o instanceof SubjectPublicKeyInfo) {
+      SubjectPublicKeyInfo subjectPublicKeyInfo = (SubjectPublicKeyInfo) o;
+      if (subjectPublicKeyInfo
+          .getAlgorithm()
+          .getAlgorithm()
+          .equals(X9ObjectIdentifiers.id_ecPublicKey)) {
+        // for the ecdsa-* signing methods. A key of the default EC
+        // provider, as Java 17 rejects the "ECDSA" keys of BouncyCastle.
+        return KeyFactory.getInstance("EC")
+            .generatePublic(new X509EncodedKeySpec(subjectPublicKeyInfo.getEncoded()));
+      }
+      if (!subjectPublicKeyInfo
+          .getAlgorithm()
+          .getAlgorithm()
+          .equals(PKCSObjectIdentifiers.rsaEncryption)) {
+        return new JcaPEMKeyConverter().getPublicKey(subjectPublicKeyInfo);
+      }
+      RSAPublicKey pubKey = RSAPublicKey.getInstance(subjectPublicKeyInfo.parsePublicKey());
+      return KeyFactory.getInstance("RSA")
+          .generatePublic(new RSAPublicKeySpec(pubKey.getModulus(), pubKey.getPublicExponent()));
+    }
+    throw new IllegalStateException("Didn't find an RSA Public Key");
+  }
+
+  static List<X509Certificate> certificatesFromPEM(String certificatesString)
+      throws KeyException {
+    try {
+      CertificateFactory certFactory = CertificateFactory.getInstance("X.509", "BC");
+      certificatesString = reformIndents(certificatesString);
+      List<X509Certificate> certificates = new ArrayList<X509Certificate>();
+      for (Certificate c :
+          certFactory.generateCertificates(
+              new ByteArrayInputStream(certificatesString.getBytes(StandardCharsets.UTF_8)))) {
+        certificates.add((X509Certificate) c);
+      }
+      if (certificates.size() == 0) {
+        throw new KeyException("no certificates found");
+      }
+      return certificates;
+    } catch (KeyException ex) {
+      throw ex;
+    } catch (Exception ex) {
+      throw new KeyException("cannot instantiate certificates", ex);
+    }
+  }
+
+  static String getCommonName(X500Principal principal) throws InvalidNameException {
+    LdapName ldapDN = new LdapName(principal.getName());
+    String cn = null;
+    for (Rdn rdn : ldapDN.getRdns()) {
+      if (rdn.getType().equals("CN")) {
+        cn = rdn.getValue().toString();
+      }
+    }
+    return cn;
+  }
+
+  static String getThumbprintBase64(X509Certificate certificate)
+      throws NoSuchAlgorithmException, CertificateEncodingException {
+    return Base64.getEncoder()
+        .encodeToString(MessageDigest.getInstance("SHA-1").digest(certificate.getEncoded()));
+  }
+
+  static String getThumbprintHex(X509Certificate certificate)
+      throws NoSuchAlgorithmException, CertificateEncodingException {
+    return toHex(MessageDigest.getInstance("SHA-1").digest(certificate.getEncoded()));
+  }
+
+  // Lower case, as javax.xml.bind is not part of Java 11 and later.
+  static String toHex(byte[] bytes) {
+    char[] chars = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      chars[2 * i] = hexDigits[(bytes[i] >> 4) & 0xf];
+      chars[2 * i + 1] = hexDigits[bytes[i] & 0xf];
+    }
+    return new String(chars);
+  }
+}
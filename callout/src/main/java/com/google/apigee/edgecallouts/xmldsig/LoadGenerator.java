@@ -0,0 +1,166 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.edgecallouts.xmldsig;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Posts a document repeatedly to a {@link SigningServer}, from a number of
+ * threads, each reusing its kept-alive connection, and reports throughput and
+ * latency percentiles:
+ *
+ * <pre>
+ * java -cp ... com.google.apigee.edgecallouts.xmldsig.LoadGenerator \
+ *     --url http://localhost:8088/sign --file order.xml --threads 16 --seconds 10
+ * </pre>
+ */
+public final class LoadGenerator {
+  private static final int WARMUP_SECONDS = 2;
+
+  private LoadGenerator() {}
+
+  public static void main(String[] args) throws Exception {
+    String url = "http://localhost:8088/sign";
+    String file = null;
+    int threads = 8;
+    int seconds = 10;
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if (args[i].equals("--url")) url = args[i + 1];
+      else if (args[i].equals("--file")) file = args[i + 1];
+      else if (args[i].equals("--threads")) threads = Integer.parseInt(args[i + 1]);
+      else if (args[i].equals("--seconds")) seconds = Integer.parseInt(args[i + 1]);
+      else throw new IllegalArgumentException("unrecognized option " + args[i]);
+    }
+    if (file == null) {
+      throw new IllegalArgumentException("--file is required");
+    }
+    byte[] body = Files.readAllBytes(Paths.get(file));
+
+    System.out.printf("warming up for %d seconds\n", WARMUP_SECONDS);
+    run(new URL(url), body, threads, WARMUP_SECONDS);
+    Report report = run(new URL(url), body, threads, seconds);
+    System.out.printf(
+        "threads %d  requests %d  errors %d  throughput %.1f/s  p50 %.2f ms  p99 %.2f ms\n",
+        threads,
+        report.latencies.length,
+        report.errors,
+        report.latencies.length / (double) seconds,
+        report.percentile(50) / 1e6,
+        report.percentile(99) / 1e6);
+  }
+
+  static final class Report {
+    final long[] latencies; // nanoseconds, sorted
+    final long errors;
+
+    Report(long[] latencies, long errors) {
+      this.latencies = latencies;
+      this.errors = errors;
+    }
+
+    long percentile(int p) {
+      if (latencies.length == 0) return 0;
+      int ix = (int) Math.ceil(p / 100.0 * latencies.length) - 1;
+      return latencies[Math.max(0, ix)];
+    }
+  }
+
+  static Report run(final URL url, final byte[] body, int threads, int seconds)
+      throws InterruptedException {
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    final AtomicLong errors = new AtomicLong();
+    final List<long[]> perThread = new ArrayList<long[]>();
+    final int[] counts = new int[threads];
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      final int index = t;
+      final long[] latencies = new long[1 << 20];
+      perThread.add(latencies);
+      workers[t] =
+          new Thread(
+              new Runnable() {
+                public void run() {
+                  int n = 0;
+                  while (System.nanoTime() < deadline && n < latencies.length) {
+                    long start = System.nanoTime();
+                    try {
+                      if (post(url, body) == 200) {
+                        latencies[n++] = System.nanoTime() - start;
+                      } else {
+                        errors.incrementAndGet();
+                      }
+                    } catch (IOException e) {
+                      errors.incrementAndGet();
+                    }
+                  }
+                  counts[index] = n;
+                }
+              },
+              "load-" + t);
+      workers[t].start();
+    }
+    int total = 0;
+    for (int t = 0; t < threads; t++) {
+      workers[t].join();
+      total += counts[t];
+    }
+    long[] all = new long[total];
+    int offset = 0;
+    for (int t = 0; t < threads; t++) {
+      System.arraycopy(perThread.get(t), 0, all, offset, counts[t]);
+      offset += counts[t];
+    }
+    Arrays.sort(all);
+    return new Report(all, errors.get());
+  }
+
+  // Reads the whole response, so that the connection goes back to the
+  // keep-alive cache for the next request.
+  private static int post(URL url, byte[] body) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    connection.setFixedLengthStreamingMode(body.length);
+    connection.setRequestProperty("Content-Type", "application/xml");
+    OutputStream out = connection.getOutputStream();
+    out.write(body);
+    out.close();
+    int status = connection.getResponseCode();
+    InputStream in = (status < 400) ? connection.getInputStream() : connection.getErrorStream();
+    if (in != null) {
+      ByteArrayOutputStream sink = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        sink.write(buffer, 0, n);
+      }
+      in.close();
+    }
+    return status;
+  }
+}
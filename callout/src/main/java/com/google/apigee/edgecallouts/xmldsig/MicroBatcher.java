@@ -0,0 +1,137 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.edgecallouts.xmldsig;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import org.w3c.dom.Document;
+
+/**
+ * Groups documents submitted concurrently, from any number of request
+ * threads, and hands each group to the bounded batch pool, so the crypto for
+ * concurrent requests executes there rather than on every request thread at
+ * once. A group is whatever has queued up, up to a maximum; no wait is added
+ * when a document arrives alone. Groups are pipelined: the dispatcher does
+ * not wait for a group to finish, only for a free worker, so the next group
+ * starts as soon as the pool has room, and at most one document per worker
+ * is in flight.
+ */
+final class MicroBatcher {
+  private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<Pending>();
+  private final Semaphore workers = new Semaphore(Batch.POOL_SIZE);
+  private final Batch.Processor processor;
+  private final int maxGroupSize;
+  private final Thread dispatcher;
+  private final AtomicLong items = new AtomicLong();
+  private final AtomicLong groups = new AtomicLong();
+  private volatile boolean closed;
+
+  private static final class Pending {
+    final Document doc;
+    final CompletableFuture<Batch.Result> result = new CompletableFuture<Batch.Result>();
+
+    Pending(Document doc) {
+      this.doc = doc;
+    }
+  }
+
+  MicroBatcher(String name, Batch.Processor processor, int maxGroupSize) {
+    this.processor = processor;
+    this.maxGroupSize = maxGroupSize;
+    dispatcher =
+        new Thread(
+            new Runnable() {
+              public void run() {
+                dispatch();
+              }
+            },
+            "xmldsig-" + name + "-dispatcher");
+    dispatcher.setDaemon(true);
+    dispatcher.start();
+  }
+
+  /** Queues the document and waits for its result. */
+  Batch.Result submit(Document doc) throws InterruptedException, ExecutionException {
+    Pending pending = new Pending(doc);
+    queue.add(pending);
+    // queued after close drained the queue, so no dispatcher will take it
+    if (closed && queue.remove(pending)) {
+      throw new IllegalStateException("batcher is closed");
+    }
+    return pending.result.get();
+  }
+
+  /**
+   * Stops the dispatcher. Documents already on the pool finish; those still
+   * queued fail.
+   */
+  void close() {
+    closed = true;
+    dispatcher.interrupt();
+  }
+
+  long getItemCount() {
+    return items.get();
+  }
+
+  long getGroupCount() {
+    return groups.get();
+  }
+
+  private void dispatch() {
+    Queue<Pending> group = new ArrayDeque<Pending>(maxGroupSize);
+    try {
+      while (true) {
+        group.add(queue.take());
+        queue.drainTo(group, maxGroupSize - 1);
+        while (!group.isEmpty()) {
+          workers.acquire();
+          start(group.remove());
+        }
+        groups.incrementAndGet();
+      }
+    } catch (InterruptedException e) {
+      queue.drainTo(group);
+      for (Pending pending : group) {
+        pending.result.completeExceptionally(e);
+      }
+    }
+  }
+
+  private void start(final Pending pending) {
+    try {
+      Batch.runAsync(
+          pending.doc,
+          processor,
+          new Batch.Callback() {
+            public void done(Batch.Result result) {
+              workers.release();
+              items.incrementAndGet();
+              pending.result.complete(result);
+            }
+          });
+    } catch (RuntimeException e) {
+      workers.release();
+      pending.result.completeExceptionally(e);
+    }
+  }
+}
@@ -0,0 +1,169 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.edgecallouts.xmldsig;
+
+import com.google.apigee.util.BoundedInputStream;
+import com.google.apigee.util.XmlUtils;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+/**
+ * Limits on a signed document, checked before any unmarshalling,
+ * canonicalization or cryptography. The size limit is applied while the
+ * document is read; the remaining limits are checked in a single walk of
+ * the parsed tree. A limit that is not set is not checked.
+ */
+final class PolicyGate {
+  static final String SECURE_VALIDATION = "org.jcp.xml.dsig.secureValidation";
+  private static final String SIZE_MESSAGE = "document exceeds max-document-bytes";
+
+  long maxDocumentBytes = -1;
+  int maxDepth = -1;
+  int maxSignatures = -1;
+  int maxReferences = -1;
+  Set<String> allowedAlgorithms; // for SignatureMethod and DigestMethod
+  Set<String> allowedTransforms; // for CanonicalizationMethod and Transform
+
+  /** Thrown when a document violates the policy; detail says how. */
+  static final class Violation extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+    final String detail;
+
+    Violation(String message, String detail) {
+      super(message);
+      this.detail = detail;
+    }
+  }
+
+  static Set<String> parseList(String value) {
+    if (value == null) return null;
+    return new HashSet<String>(Arrays.asList(value.trim().split("[\\s,]+")));
+  }
+
+  void checkSize(long size) {
+    if (maxDocumentBytes >= 0 && size > maxDocumentBytes) {
+      throw new Violation(SIZE_MESSAGE, Long.toString(size));
+    }
+  }
+
+  // The size of text is the length of its UTF-8 encoding, as for a stream.
+  // No character takes more than three bytes, so short text is not counted.
+  void checkSize(String text) {
+    if (maxDocumentBytes < 0 || (long) text.length() * 3 <= maxDocumentBytes) return;
+    checkSize(utf8Length(text));
+  }
+
+  private static long utf8Length(String text) {
+    long length = 0;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c)
+          && i + 1 < text.length()
+          && Character.isLowSurrogate(text.charAt(i + 1))) {
+        length += 4;
+        i++;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Parses the stream, failing with a Violation as soon as more than
+   * max-document-bytes have been read. The detail is the count read by then.
+   */
+  Document parse(InputStream in, long spillThreshold)
+      throws IOException, SAXException, ParserConfigurationException {
+    if (maxDocumentBytes < 0) {
+      return XmlUtils.parseXml(in, spillThreshold);
+    }
+    try {
+      return XmlUtils.parseXml(
+          new BoundedInputStream(in, maxDocumentBytes, SIZE_MESSAGE), spillThreshold);
+    } catch (BoundedInputStream.LimitExceededException e) {
+      throw new Violation(SIZE_MESSAGE, Long.toString(e.getCount()));
+    }
+  }
+
+  void check(Document doc) {
+    int signatures = 0;
+    int references = 0;
+    int depth = 0;
+    Node node = doc.getDocumentElement();
+    while (node != null) {
+      if (node.getNodeType() == Node.ELEMENT_NODE) {
+        depth++;
+        if (maxDepth >= 0 && depth > maxDepth) {
+          throw new Violation("document exceeds max-depth", Integer.toString(depth));
+        }
+        if (XMLSignature.XMLNS.equals(node.getNamespaceURI())) {
+          String localName = node.getLocalName();
+          if (localName.equals("Signature")) {
+            if (maxSignatures >= 0 && ++signatures > maxSignatures) {
+              throw new Violation("document exceeds max-signatures", Integer.toString(signatures));
+            }
+          } else if (localName.equals("Reference")) {
+            if (maxReferences >= 0 && ++references > maxReferences) {
+              throw new Violation("document exceeds max-references", Integer.toString(references));
+            }
+          } else if (localName.equals("SignatureMethod") || localName.equals("DigestMethod")) {
+            checkAlgorithm((Element) node, allowedAlgorithms, "algorithm not allowed by policy");
+          } else if (localName.equals("CanonicalizationMethod") || localName.equals("Transform")) {
+            checkAlgorithm((Element) node, allowedTransforms, "transform not allowed by policy");
+          }
+        }
+        if (node.getFirstChild() != null) {
+          node = node.getFirstChild();
+          continue;
+        }
+        depth--;
+      }
+      // move to the next sibling, climbing out of finished elements
+      while (node != null && node.getNextSibling() == null) {
+        node = node.getParentNode();
+        if (node == null || node.getNodeType() == Node.DOCUMENT_NODE) {
+          return;
+        }
+        depth--;
+      }
+      if (node != null) {
+        node = node.getNextSibling();
+      }
+    }
+  }
+
+  private static void checkAlgorithm(Element element, Set<String> allowed, String message) {
+    if (allowed == null) return;
+    String algorithm = element.getAttribute("Algorithm");
+    if (!allowed.contains(algorithm)) {
+      throw new Violation(message, algorithm);
+    }
+  }
+}
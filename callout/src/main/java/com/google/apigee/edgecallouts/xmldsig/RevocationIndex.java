@@ -0,0 +1,211 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.edgecallouts.xmldsig;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.cert.CRL;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * An immutable index of revoked serial numbers, per issuer, built from
+ * locally provisioned CRL files. Serials that fit in a long are kept in a
+ * sorted primitive array and found by binary search; longer serials are kept
+ * in a hash set. A background task rebuilds the index when any of the files
+ * changes, and swaps it in atomically. The CRLs are trusted as provisioned;
+ * their signatures are not checked.
+ */
+class RevocationIndex {
+  private static final int MAX_INDEXES = 32;
+  // Least recently used first. An index that is evicted is no longer
+  // refreshed, so the file lists, which may come from flow variables, cannot
+  // accumulate tasks.
+  private static final Map<String, RevocationIndex> indexes =
+      new LinkedHashMap<String, RevocationIndex>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, RevocationIndex> eldest) {
+          if (size() > MAX_INDEXES) {
+            eldest.getValue().refreshTask.cancel(false);
+            return true;
+          }
+          return false;
+        }
+      };
+  private static final ScheduledExecutorService refresher =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "xmldsig-crl-refresh");
+              t.setDaemon(true);
+              return t;
+            }
+          });
+
+  private final List<Path> files;
+  private volatile long[] lastModified;
+  private volatile Map<X500Principal, RevokedSerials> revoked;
+  private ScheduledFuture<?> refreshTask;
+
+  private RevocationIndex(List<Path> files) throws IOException, GeneralSecurityException {
+    this.files = files;
+    this.lastModified = getLastModified(files);
+    this.revoked = load(files);
+  }
+
+  /**
+   * Returns the index for the given comma-separated list of CRL files,
+   * refreshed at the given interval, loading it on first use. Policies that
+   * name the same files with different intervals get separate indexes.
+   */
+  static RevocationIndex forFiles(String crlFiles, long refreshSeconds)
+      throws IOException, GeneralSecurityException {
+    String key = refreshSeconds + " " + crlFiles;
+    synchronized (indexes) {
+      RevocationIndex index = indexes.get(key);
+      if (index == null) {
+        List<Path> files = new ArrayList<Path>();
+        for (String file : crlFiles.split(",")) {
+          if (!file.trim().equals("")) {
+            files.add(Paths.get(file.trim()));
+          }
+        }
+        final RevocationIndex newIndex = new RevocationIndex(files);
+        newIndex.refreshTask =
+            refresher.scheduleWithFixedDelay(
+                new Runnable() {
+                  public void run() {
+                    newIndex.refreshIfChanged();
+                  }
+                },
+                refreshSeconds,
+                refreshSeconds,
+                TimeUnit.SECONDS);
+        indexes.put(key, newIndex);
+        index = newIndex;
+      }
+      return index;
+    }
+  }
+
+  boolean isRevoked(X509Certificate certificate) {
+    RevokedSerials serials = revoked.get(certificate.getIssuerX500Principal());
+    return serials != null && serials.contains(certificate.getSerialNumber());
+  }
+
+  private void refreshIfChanged() {
+    try {
+      long[] current = getLastModified(files);
+      if (!Arrays.equals(current, lastModified)) {
+        revoked = load(files);
+        lastModified = current;
+      }
+    } catch (Exception e) {
+      // keep serving the previous index; the next run will try again
+    }
+  }
+
+  private static long[] getLastModified(List<Path> files) throws IOException {
+    long[] times = new long[files.size()];
+    for (int i = 0; i < times.length; i++) {
+      times[i] = Files.getLastModifiedTime(files.get(i)).toMillis();
+    }
+    return times;
+  }
+
+  private static Map<X500Principal, RevokedSerials> load(List<Path> files)
+      throws IOException, GeneralSecurityException {
+    CertificateFactory certFactory = CertificateFactory.getInstance("X.509");
+    Map<X500Principal, List<BigInteger>> serialsByIssuer =
+        new HashMap<X500Principal, List<BigInteger>>();
+    for (Path file : files) {
+      try (InputStream in = Files.newInputStream(file)) {
+        for (CRL crl : certFactory.generateCRLs(in)) {
+          X509CRL x509crl = (X509CRL) crl;
+          Set<? extends X509CRLEntry> entries = x509crl.getRevokedCertificates();
+          if (entries == null) continue;
+          for (X509CRLEntry entry : entries) {
+            X500Principal issuer = entry.getCertificateIssuer();
+            if (issuer == null) issuer = x509crl.getIssuerX500Principal();
+            List<BigInteger> serials = serialsByIssuer.get(issuer);
+            if (serials == null) {
+              serials = new ArrayList<BigInteger>();
+              serialsByIssuer.put(issuer, serials);
+            }
+            serials.add(entry.getSerialNumber());
+          }
+        }
+      }
+    }
+    Map<X500Principal, RevokedSerials> index = new HashMap<X500Principal, RevokedSerials>();
+    for (Map.Entry<X500Principal, List<BigInteger>> e : serialsByIssuer.entrySet()) {
+      index.put(e.getKey(), new RevokedSerials(e.getValue()));
+    }
+    return Collections.unmodifiableMap(index);
+  }
+
+  static final class RevokedSerials {
+    private final long[] shortSerials; // sorted
+    private final Set<BigInteger> longSerials;
+
+    RevokedSerials(List<BigInteger> serials) {
+      long[] shorts = new long[serials.size()];
+      int count = 0;
+      Set<BigInteger> longs = new HashSet<BigInteger>();
+      for (BigInteger serial : serials) {
+        if (serial.bitLength() < 64) {
+          shorts[count++] = serial.longValue();
+        } else {
+          longs.add(serial);
+        }
+      }
+      this.shortSerials = Arrays.copyOf(shorts, count);
+      Arrays.sort(this.shortSerials);
+      this.longSerials = longs;
+    }
+
+    boolean contains(BigInteger serial) {
+      if (serial.bitLength() < 64) {
+        return Arrays.binarySearch(shortSerials, serial.longValue()) >= 0;
+      }
+      return longSerials.contains(serial);
+    }
+  }
+}
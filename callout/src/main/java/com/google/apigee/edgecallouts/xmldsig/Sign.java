@@ -18,393 +18,400 @@ package com.google.apigee.edgecallouts.xmldsig;
 import com.apigee.flow.execution.ExecutionContext;
 import com.apigee.flow.execution.ExecutionResult;
 import com.apigee.flow.execution.spi.Execution;
+import com.apigee.flow.message.Message;
 import com.apigee.flow.message.MessageContext;
-import com.google.apigee.xml.Namespaces;
+import com.google.apigee.util.ContentEncoding;
+import com.google.apigee.util.XmlUtils;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.StringReader;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.KeyException;
-import java.security.KeyPair;
-import java.security.NoSuchAlgorithmException;
-import java.security.cert.CertificateEncodingException;
+import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
-import java.security.interfaces.RSAPrivateKey;
-import java.security.spec.InvalidKeySpecException;
-import java.util.Base64;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import javax.naming.InvalidNameException;
-import javax.security.auth.x500.X500Principal;
-import javax.xml.crypto.MarshalException;
-import javax.xml.crypto.dsig.CanonicalizationMethod;
-import javax.xml.crypto.dsig.DigestMethod;
-import javax.xml.crypto.dsig.Reference;
-import javax.xml.crypto.dsig.SignatureMethod;
-import javax.xml.crypto.dsig.SignedInfo;
-import javax.xml.crypto.dsig.Transform;
-import javax.xml.crypto.dsig.XMLSignature;
-import javax.xml.crypto.dsig.XMLSignatureException;
-import javax.xml.crypto.dsig.XMLSignatureFactory;
-import javax.xml.crypto.dsig.dom.DOMSignContext;
-import javax.xml.crypto.dsig.keyinfo.KeyInfo;
-import javax.xml.crypto.dsig.keyinfo.KeyInfoFactory;
-import javax.xml.crypto.dsig.spec.C14NMethodParameterSpec;
-import javax.xml.crypto.dsig.spec.TransformParameterSpec;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
-import org.bouncycastle.openssl.PEMDecryptorProvider;
-import org.bouncycastle.openssl.PEMEncryptedKeyPair;
-import org.bouncycastle.openssl.PEMKeyPair;
-import org.bouncycastle.openssl.PEMParser;
-import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
-import org.bouncycastle.openssl.jcajce.JceOpenSSLPKCS8DecryptorProviderBuilder;
-import org.bouncycastle.openssl.jcajce.JcePEMDecryptorProviderBuilder;
-import org.bouncycastle.operator.InputDecryptorProvider;
-import org.bouncycastle.operator.OperatorCreationException;
-import org.bouncycastle.pkcs.PKCS8EncryptedPrivateKeyInfo;
-import org.bouncycastle.pkcs.PKCSException;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
 public class Sign extends XmlDsigCalloutBase implements Execution {
+  private static final int DEFAULT_EXPIRY_SECONDS = 300;
+  // The properties that configure the engine; see getEngine.
+  private static final String[] ENGINE_PROPERTIES = {
+    "signature-type",
+    "private-key",
+    "private-keys",
+    "private-key-password",
+    "certificate",
+    "key-identifier-type",
+    "issuer-name-style",
+    "signing-method",
+    "digest-method",
+    "detached-uri",
+    "expiry",
+    "trust-anchors",
+    "certificate-cache-ttl",
+    "crl-files",
+    "crl-refresh-interval"
+  };
 
   public Sign(Map properties) {
     super(properties);
   }
 
-  private static String sign_RSA(Document doc, SignConfiguration signConfiguration)
-      throws InstantiationException, NoSuchAlgorithmException, InvalidAlgorithmParameterException,
-          KeyException, MarshalException, XMLSignatureException, TransformerException,
-          CertificateEncodingException {
-    XMLSignatureFactory signatureFactory = XMLSignatureFactory.getInstance("DOM");
-
-    String digestMethodUri =
-        ((signConfiguration.digestMethod != null)
-                && (signConfiguration.digestMethod.toLowerCase().equals("sha256")))
-            ? DigestMethod.SHA256
-            : DigestMethod.SHA1;
-    DigestMethod digestMethod = signatureFactory.newDigestMethod(digestMethodUri, null);
-
-    Transform transform =
-        signatureFactory.newTransform(Transform.ENVELOPED, (TransformParameterSpec) null);
-    // Transform transform =
-    //     signatureFactory.newTransform(
-    //         "http://www.w3.org/2001/10/xml-exc-c14n#", (TransformParameterSpec) null);
-    Reference reference =
-        signatureFactory.newReference(
-            "", digestMethod, Collections.singletonList(transform), null, null);
-
-    // add <SignatureMethod Algorithm="..."?>
-    String signingMethodUri =
-        ((signConfiguration.signingMethod != null)
-                && (signConfiguration.signingMethod.toLowerCase().equals("rsa-sha256")))
-            ? "http://www.w3.org/2001/04/xmldsig-more#rsa-sha256"
-            : "http://www.w3.org/2000/09/xmldsig#rsa-sha1";
-
-    SignatureMethod signatureMethod = signatureFactory.newSignatureMethod(signingMethodUri, null);
-
-    CanonicalizationMethod canonicalizationMethod =
-        signatureFactory.newCanonicalizationMethod(
-            CanonicalizationMethod.EXCLUSIVE, (C14NMethodParameterSpec) null);
-
-    // Create the SignedInfo
-    SignedInfo signedInfo =
-        signatureFactory.newSignedInfo(
-            canonicalizationMethod, signatureMethod, Collections.singletonList(reference));
-
-    KeyInfoFactory kif = signatureFactory.getKeyInfoFactory();
-    KeyInfo keyInfo = null;
-    if (signConfiguration.keyIdentifierType == KeyIdentifierType.RSA_KEY_VALUE) {
-      // <KeyInfo>
-      //   <KeyValue>
-      //     <RSAKeyValue>
-      //       <Modulus>B6PenDyT58LjZlG6LYD27IFCh1yO+4...yCP9YNDtsLZftMLoQ==</Modulus>
-      //       <Exponent>AQAB</Exponent>
-      //     </RSAKeyValue>
-      //   </KeyValue>
-      // </KeyInfo>
-      Element keyValue = doc.createElementNS(Namespaces.XMLDSIG, "KeyValue");
-      Element rsaKeyValue = doc.createElementNS(Namespaces.XMLDSIG, "RSAKeyValue");
-      Element modulus = doc.createElementNS(Namespaces.XMLDSIG, "Modulus");
-      Element exponent = doc.createElementNS(Namespaces.XMLDSIG, "Exponent");
-
-      RSAPrivateKey configPrivateKey = (RSAPrivateKey) signConfiguration.privatekey;
-      final byte[] keyModulus = configPrivateKey.getModulus().toByteArray();
-      String encodedModulus = Base64.getEncoder().encodeToString(keyModulus);
-      modulus.setTextContent(encodedModulus);
-      // final byte[] publicExponent = configPrivateKey.getPublicExponent().toByteArray();
-      // String encodedPublicExponent = Base64.getEncoder().encodeToString(publicExponent);
-      exponent.setTextContent("AQAB");
-      rsaKeyValue.appendChild(modulus);
-      rsaKeyValue.appendChild(exponent);
-      keyValue.appendChild(rsaKeyValue);
-      javax.xml.crypto.XMLStructure structure = new javax.xml.crypto.dom.DOMStructure(keyValue);
-      keyInfo = kif.newKeyInfo(java.util.Collections.singletonList(structure));
-
-      // KeyValue kv = kif.newKeyValue(kp.getPublic());
-      //
-      // // new DOMSignContext(kp.getPrivate(), doc.getDocumentElement());
-      // //
-      // // The marshalled XMLSignature will be added as the last child element
-      // // of the specified parent node unless a next sibling node is specified
-      // // by invoking the setNextSibling method.
-      //
-      // DOMSignContext signingContext = new DOMSignContext(kp.getPrivate(),
-      // doc.getDocumentElement());
-      // XMLSignature signature =
-      //     signatureFactory.newXMLSignature(signedInfo,
-      // kif.newKeyInfo(Collections.singletonList(kv)));
-
-    } else if (signConfiguration.keyIdentifierType == KeyIdentifierType.X509_CERT_DIRECT) {
-      // <KeyInfo>
-      //   <X509Data>
-      //     <X509Certificate>MIICAjCCAWugAw....AQnEdD9tI7IYAAoK4O+35EOzcXbvc4Kzz7BQnulQ=</X509Certificate>
-      //   </X509Data>
-      // </KeyInfo>
-      Element x509Data = doc.createElementNS(Namespaces.XMLDSIG, "X509Data");
-      Element x509Certificate = doc.createElementNS(Namespaces.XMLDSIG, "X509Certificate");
-      if (signConfiguration.certificate == null) {
-        throw new IllegalStateException("missing certificate");
-      }
-      x509Certificate.setTextContent(
-          Base64.getEncoder().encodeToString(signConfiguration.certificate.getEncoded()));
-      x509Data.appendChild(x509Certificate);
-      javax.xml.crypto.XMLStructure structure = new javax.xml.crypto.dom.DOMStructure(x509Data);
-      keyInfo = kif.newKeyInfo(java.util.Collections.singletonList(structure));
-    }
-
-    // DOMSignContext signingContext = new DOMSignContext(signConfiguration.privatekey,
-    // wssecHeader);
-    DOMSignContext signingContext =
-        new DOMSignContext(signConfiguration.privatekey, doc.getDocumentElement());
-    XMLSignature signature = signatureFactory.newXMLSignature(signedInfo, keyInfo);
-    signature.sign(signingContext);
-
-    TransformerFactory tf = TransformerFactory.newInstance();
-    Transformer trans = tf.newTransformer();
-
-    // emit the resulting document
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    Transformer transformer = TransformerFactory.newInstance().newTransformer();
-    transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-    transformer.transform(new DOMSource(doc), new StreamResult(baos));
-    return new String(baos.toByteArray(), StandardCharsets.UTF_8);
+  // Message content read as text, though it holds gzip or zlib data; no XML
+  // document begins with either of these characters.
+  private static boolean isCompressed(String text) {
+    return text.length() > 0 && (text.charAt(0) == 0x1f || text.charAt(0) == 'x');
   }
 
-  private static RSAPrivateKey readKey(String privateKeyPemString, String password)
-      throws IOException, OperatorCreationException, PKCSException, InvalidKeySpecException,
-          NoSuchAlgorithmException {
-    if (privateKeyPemString == null) {
-      throw new IllegalStateException("PEM String is null");
+  // Inserts the serialized Signature just before the end tag of the root
+  // element in the original text, leaving the rest of the text untouched.
+  // Returns null if the end tag cannot be located.
+  private static String spliceSignature(
+      String sourceText, Document doc, List<Element> signatureElements)
+      throws TransformerException {
+    int ix = XmlUtils.indexOfRootEndTag(sourceText, doc.getDocumentElement().getTagName());
+    if (ix < 0) {
+      return null;
+    }
+    StringBuilder signatureXml = new StringBuilder();
+    for (Element signatureElement : signatureElements) {
+      signatureXml.append(XmlUtils.toString(signatureElement));
     }
-    if (password == null) password = "";
+    return new StringBuilder(sourceText.length() + signatureXml.length())
+        .append(sourceText, 0, ix)
+        .append(signatureXml)
+        .append(sourceText, ix, sourceText.length())
+        .toString();
+  }
 
-    PEMParser pr = null;
-    try {
-      pr = new PEMParser(new StringReader(privateKeyPemString));
-      Object o = pr.readObject();
+  private PrivateKey getPrivateKey(MessageContext msgCtxt) throws Exception {
+    String privateKeyPemString = getSimpleRequiredProperty("private-key", msgCtxt);
+    privateKeyPemString = privateKeyPemString.trim();
 
-      if (o == null) {
-        throw new IllegalStateException("Parsed object is null.  Bad input.");
-      }
-      if (!((o instanceof PEMEncryptedKeyPair)
-          || (o instanceof PKCS8EncryptedPrivateKeyInfo)
-          || (o instanceof PrivateKeyInfo)
-          || (o instanceof PEMKeyPair))) {
-        // System.out.printf("found %s\n", o.getClass().getName());
-        throw new IllegalStateException(
-            "Didn't find OpenSSL key. Found: " + o.getClass().getName());
+    // clear any leading whitespace on each line
+    privateKeyPemString = Keys.reformIndents(privateKeyPemString);
+    String privateKeyPassword = getSimpleOptionalProperty("private-key-password", msgCtxt);
+    if (privateKeyPassword == null) privateKeyPassword = "";
+    final String pem = privateKeyPemString;
+    final String password = privateKeyPassword;
+    return new XmlDsigEvents.Timed<XmlDsigEvents.KeyLoadEvent, PrivateKey>() {
+      PrivateKey run() throws Exception {
+        return Keys.readPrivateKey(pem, password);
       }
 
-      JcaPEMKeyConverter converter = new JcaPEMKeyConverter().setProvider("BC");
-
-      if (o instanceof PEMKeyPair) {
-        // eg, "openssl genrsa -out keypair-rsa-2048-unencrypted.pem 2048"
-        return (RSAPrivateKey) converter.getPrivateKey(((PEMKeyPair) o).getPrivateKeyInfo());
+      void describe(XmlDsigEvents.KeyLoadEvent event, PrivateKey privateKey) {
+        XmlDsigEvents.describeKeys(
+            event, "private-key", (privateKey != null) ? Arrays.asList(privateKey) : null);
       }
+    }.in(XmlDsigEvents.newKeyLoadEvent());
+  }
 
-      if (o instanceof PrivateKeyInfo) {
-        // eg, "openssl genpkey  -algorithm rsa -pkeyopt rsa_keygen_bits:2048 -out keypair.pem"
-        return (RSAPrivateKey) converter.getPrivateKey((PrivateKeyInfo) o);
+  // Returns the keys in private-keys, or null if that property is not set.
+  private List<PrivateKey> getPrivateKeys(MessageContext msgCtxt) throws Exception {
+    String privateKeysPemString = getSimpleOptionalProperty("private-keys", msgCtxt);
+    if (privateKeysPemString == null) return null;
+    privateKeysPemString = Keys.reformIndents(privateKeysPemString.trim());
+    String privateKeyPassword = getSimpleOptionalProperty("private-key-password", msgCtxt);
+    final String pem = privateKeysPemString;
+    final String password = privateKeyPassword;
+    return new XmlDsigEvents.Timed<XmlDsigEvents.KeyLoadEvent, List<PrivateKey>>() {
+      List<PrivateKey> run() throws Exception {
+        return Keys.readPrivateKeys(pem, password);
       }
 
-      if (o instanceof PKCS8EncryptedPrivateKeyInfo) {
-        // eg, "openssl genpkey -algorithm rsa -aes-128-cbc -pkeyopt rsa_keygen_bits:2048 -out
-        // private-encrypted.pem"
-        PKCS8EncryptedPrivateKeyInfo pkcs8EncryptedPrivateKeyInfo =
-            (PKCS8EncryptedPrivateKeyInfo) o;
-        JceOpenSSLPKCS8DecryptorProviderBuilder decryptorProviderBuilder =
-            new JceOpenSSLPKCS8DecryptorProviderBuilder();
-        InputDecryptorProvider decryptorProvider =
-            decryptorProviderBuilder.build(password.toCharArray());
-        PrivateKeyInfo privateKeyInfo =
-            pkcs8EncryptedPrivateKeyInfo.decryptPrivateKeyInfo(decryptorProvider);
-        return (RSAPrivateKey) converter.getPrivateKey(privateKeyInfo);
+      void describe(XmlDsigEvents.KeyLoadEvent event, List<PrivateKey> privateKeys) {
+        XmlDsigEvents.describeKeys(event, "private-keys", privateKeys);
       }
+    }.in(XmlDsigEvents.newKeyLoadEvent());
+  }
 
-      if (o instanceof PEMEncryptedKeyPair) {
-        // eg, "openssl genrsa -aes256 -out private-encrypted-aes-256-cbc.pem 2048"
-        PEMDecryptorProvider decProv =
-            new JcePEMDecryptorProviderBuilder().setProvider("BC").build(password.toCharArray());
-        KeyPair keyPair = converter.getKeyPair(((PEMEncryptedKeyPair) o).decryptKeyPair(decProv));
-        return (RSAPrivateKey) keyPair.getPrivate();
+  // The first certificate is the signer; any others are intermediates.
+  private List<X509Certificate> getCertificates(MessageContext msgCtxt) throws Exception {
+    final String certificateString = getSimpleRequiredProperty("certificate", msgCtxt).trim();
+    return new XmlDsigEvents.Timed<XmlDsigEvents.KeyLoadEvent, List<X509Certificate>>() {
+      List<X509Certificate> run() throws Exception {
+        return Keys.certificatesFromPEM(certificateString);
       }
-    } finally {
-      if (pr != null) {
-        pr.close();
+
+      void describe(XmlDsigEvents.KeyLoadEvent event, List<X509Certificate> certificates) {
+        XmlDsigEvents.describeKeys(
+            event,
+            "certificate",
+            (certificates != null) ? Arrays.asList(certificates.get(0).getPublicKey()) : null);
       }
-    }
-    throw new IllegalStateException("unknown PEM object");
+    }.in(XmlDsigEvents.newKeyLoadEvent());
   }
 
-  private RSAPrivateKey getPrivateKey(MessageContext msgCtxt) throws Exception {
-    String privateKeyPemString = getSimpleRequiredProperty("private-key", msgCtxt);
-    privateKeyPemString = privateKeyPemString.trim();
-
-    // clear any leading whitespace on each line
-    privateKeyPemString = reformIndents(privateKeyPemString);
-    String privateKeyPassword = getSimpleOptionalProperty("private-key-password", msgCtxt);
-    if (privateKeyPassword == null) privateKeyPassword = "";
-    return readKey(privateKeyPemString, privateKeyPassword);
+  private Signer.SignatureType getSignatureType(MessageContext msgCtxt) throws Exception {
+    String type = getSimpleOptionalProperty("signature-type", msgCtxt);
+    if (type == null) return Signer.SignatureType.ENVELOPED;
+    type = type.trim().toUpperCase();
+    if (type.equals("DETACHED")) return Signer.SignatureType.DETACHED;
+    if (type.equals("WS-SECURITY")) return Signer.SignatureType.WS_SECURITY;
+    if (!type.equals("ENVELOPED")) {
+      msgCtxt.setVariable(varName("warning"), "unrecognized signature-type");
+    }
+    return Signer.SignatureType.ENVELOPED;
   }
 
-  protected X509Certificate getCertificate(MessageContext msgCtxt)
-      throws NoSuchAlgorithmException, InvalidNameException, KeyException,
-          CertificateEncodingException {
-    String certificateString = getSimpleRequiredProperty("certificate", msgCtxt);
-    certificateString = certificateString.trim();
-    X509Certificate certificate = (X509Certificate) certificateFromPEM(certificateString);
-    X500Principal principal = certificate.getIssuerX500Principal();
-    msgCtxt.setVariable(varName("cert_issuer_cn"), getCommonName(principal));
-    msgCtxt.setVariable(varName("cert_thumbprint"), getThumbprintHex(certificate));
-    return certificate;
+  enum OutputMode {
+    SERIALIZE,
+    SPLICE
   }
 
-  private String getSigningMethod(MessageContext msgCtxt) throws Exception {
-    String signingMethod = getSimpleOptionalProperty("signing-method", msgCtxt);
-    if (signingMethod == null) return null;
-    signingMethod = signingMethod.trim();
-    // warn on invalid values
-    if (!signingMethod.toLowerCase().equals("rsa-sha1")
-        && !signingMethod.toLowerCase().equals("rsa-sha256")) {
-      msgCtxt.setVariable(varName("WARNING"), "invalid value for signing-method");
+  // IDENTITY unless output-encoding names gzip or deflate, or is "input" and
+  // the source was compressed.
+  private ContentEncoding.Type getOutputEncoding(MessageContext msgCtxt) {
+    String value = getSimpleOptionalProperty("output-encoding", msgCtxt);
+    if (value == null) return ContentEncoding.Type.IDENTITY;
+    if (value.trim().equalsIgnoreCase("input")) {
+      value = (String) msgCtxt.getVariable(varName("input_encoding"));
+      if (value == null) return ContentEncoding.Type.IDENTITY;
     }
-    return signingMethod;
+    ContentEncoding.Type type = ContentEncoding.fromName(value);
+    if (type == null) {
+      msgCtxt.setVariable(varName("warning"), "unrecognized output-encoding");
+      return ContentEncoding.Type.IDENTITY;
+    }
+    return type;
   }
 
-  private String getDigestMethod(MessageContext msgCtxt) throws Exception {
-    String digestMethod = getSimpleOptionalProperty("digest-method", msgCtxt);
-    if (digestMethod == null) return null;
-    digestMethod = digestMethod.trim();
-    // warn on invalid values
-    if (!digestMethod.toLowerCase().equals("sha1")
-        && !digestMethod.toLowerCase().equals("sha256")) {
-      msgCtxt.setVariable(varName("WARNING"), "invalid value for digest-method");
+  // Sets the output, either the given text or else the serialized document,
+  // and returns its size. With an output-encoding, the output is compressed
+  // as it is serialized, so the expanded text is never held in memory; it is
+  // then set as a byte array, or into message.content as a stream along with
+  // the Content-Encoding header, and the size is in bytes.
+  private long setOutput(MessageContext msgCtxt, String text, Document document)
+      throws Exception {
+    String outputVar = getOutputVar(msgCtxt);
+    ContentEncoding.Type encoding = getOutputEncoding(msgCtxt);
+    if (encoding == ContentEncoding.Type.IDENTITY) {
+      if (text == null) {
+        text = Signer.serialize(document);
+      }
+      msgCtxt.setVariable(outputVar, text);
+      return text.length();
     }
-    return digestMethod;
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    OutputStream out = ContentEncoding.encode(compressed, encoding);
+    if (text != null) {
+      out.write(text.getBytes(StandardCharsets.UTF_8));
+    } else {
+      Signer.serialize(document, out);
+    }
+    out.close();
+    byte[] bytes = compressed.toByteArray();
+    String encodingName = encoding.name().toLowerCase();
+    if (outputVar.equals("message.content")) {
+      Message message = msgCtxt.getMessage();
+      message.setContent(new ByteArrayInputStream(bytes));
+      message.setHeader("Content-Encoding", encodingName);
+    } else {
+      msgCtxt.setVariable(outputVar, bytes);
+    }
+    msgCtxt.setVariable(varName("output_encoding"), encodingName);
+    return bytes.length;
   }
 
-  enum KeyIdentifierType {
-    NOT_SPECIFIED,
-    X509_CERT_DIRECT,
-    RSA_KEY_VALUE;
-    // THUMBPRINT,
-    // BST_DIRECT_REFERENCE,
-    // ISSUER_SERIAL;
-
-    static KeyIdentifierType fromString(String s) {
-      for (KeyIdentifierType t : KeyIdentifierType.values()) {
-        if (t.name().equals(s)) return t;
-      }
-      return KeyIdentifierType.NOT_SPECIFIED;
+  private OutputMode getOutputMode(MessageContext msgCtxt) throws Exception {
+    String mode = getSimpleOptionalProperty("output-mode", msgCtxt);
+    if (mode == null) return OutputMode.SERIALIZE;
+    mode = mode.trim().toUpperCase();
+    if (mode.equals("SPLICE")) return OutputMode.SPLICE;
+    if (!mode.equals("SERIALIZE")) {
+      msgCtxt.setVariable(varName("warning"), "unrecognized output-mode");
     }
+    return OutputMode.SERIALIZE;
   }
 
-  private KeyIdentifierType getKeyIdentifierType(MessageContext msgCtxt) throws Exception {
+  private Signer.KeyIdentifierType getKeyIdentifierType(MessageContext msgCtxt) throws Exception {
     String kitString = getSimpleOptionalProperty("key-identifier-type", msgCtxt);
-    if (kitString == null) return KeyIdentifierType.RSA_KEY_VALUE;
+    if (kitString == null) return Signer.KeyIdentifierType.RSA_KEY_VALUE;
     kitString = kitString.trim().toUpperCase();
-    KeyIdentifierType t = KeyIdentifierType.fromString(kitString);
-    if (t == KeyIdentifierType.NOT_SPECIFIED) {
+    Signer.KeyIdentifierType t = Signer.KeyIdentifierType.fromString(kitString);
+    if (t == Signer.KeyIdentifierType.NOT_SPECIFIED) {
       msgCtxt.setVariable(varName("warning"), "unrecognized key-identifier-type");
-      return KeyIdentifierType.RSA_KEY_VALUE;
+      return Signer.KeyIdentifierType.RSA_KEY_VALUE;
     }
     return t;
   }
 
-  static class SignConfiguration {
-    public RSAPrivateKey privatekey; // required
-    public X509Certificate certificate; // required
-    public String signingMethod;
-    public String digestMethod;
-    public IssuerNameStyle issuerNameStyle;
-    public KeyIdentifierType keyIdentifierType;
-    public List<String> elementsToSign;
-
-    public SignConfiguration() {
-      keyIdentifierType = KeyIdentifierType.RSA_KEY_VALUE;
-    }
-
-    public SignConfiguration withKey(RSAPrivateKey key) {
-      this.privatekey = key;
-      return this;
-    }
-
-    public SignConfiguration withKeyIdentifierType(KeyIdentifierType kit) {
-      this.keyIdentifierType = kit;
-      return this;
-    }
-
-    public SignConfiguration withIssuerNameStyle(IssuerNameStyle ins) {
-      this.issuerNameStyle = ins;
-      return this;
-    }
-
-    public SignConfiguration withCertificate(X509Certificate certificate) {
-      this.certificate = certificate;
-      return this;
+  private int getExpiry(MessageContext msgCtxt) throws Exception {
+    String expiry = getSimpleOptionalProperty("expiry", msgCtxt);
+    if (expiry == null) return DEFAULT_EXPIRY_SECONDS;
+    try {
+      return Integer.parseInt(expiry.trim());
+    } catch (NumberFormatException nfe) {
+      throw new IllegalStateException("invalid expiry");
     }
+  }
 
-    public SignConfiguration withSigningMethod(String signingMethod) {
-      this.signingMethod = signingMethod;
-      return this;
-    }
+  // The engine for the resolved configuration. The properties that produce
+  // warnings are read for each message, so that every message that resolves
+  // them reports the warning, and the keys only when the engine is built.
+  private XmlDsigEngine getEngine(
+      final MessageContext msgCtxt, final Signer.SignatureType signatureType) throws Exception {
+    final Signer.KeyIdentifierType keyIdentifierType = getKeyIdentifierType(msgCtxt);
+    final Signer.IssuerNameStyle issuerNameStyle = getIssuerNameStyle(msgCtxt);
+    final CertificatePolicy certificatePolicy = getCertificatePolicy(msgCtxt);
+    final int expiry =
+        (signatureType == Signer.SignatureType.WS_SECURITY)
+            ? getExpiry(msgCtxt)
+            : DEFAULT_EXPIRY_SECONDS;
+    return getEngine(
+        msgCtxt,
+        ENGINE_PROPERTIES,
+        new EngineFactory() {
+          public XmlDsigEngine newEngine() throws Exception {
+            List<PrivateKey> privateKeys = getPrivateKeys(msgCtxt);
+            XmlDsigEngine.Builder builder =
+                XmlDsigEngine.newBuilder()
+                    .withPrivateKeys(
+                        (privateKeys != null)
+                            ? privateKeys
+                            : Collections.singletonList(getPrivateKey(msgCtxt)))
+                    .withSignatureType(signatureType)
+                    .withKeyIdentifierType(keyIdentifierType)
+                    .withIssuerNameStyle(issuerNameStyle)
+                    .withCertificatePolicy(certificatePolicy)
+                    .withExpiry(expiry);
+            if (keyIdentifierType != Signer.KeyIdentifierType.RSA_KEY_VALUE) {
+              builder.withCertificates(getCertificates(msgCtxt));
+            }
+            String signingMethod = getSimpleOptionalProperty("signing-method", msgCtxt);
+            if (signingMethod != null) {
+              builder.withSigningMethod(signingMethod);
+            }
+            String digestMethod = getSimpleOptionalProperty("digest-method", msgCtxt);
+            if (digestMethod != null) {
+              builder.withDigestMethod(digestMethod);
+            }
+            if (signatureType == Signer.SignatureType.DETACHED) {
+              builder.withDetachedUri(getSimpleRequiredProperty("detached-uri", msgCtxt));
+            }
+            return builder.build();
+          }
+        });
+  }
 
-    public SignConfiguration withDigestMethod(String digestMethod) {
-      this.digestMethod = digestMethod;
-      return this;
-    }
+  // Signs each document of the batch on the worker pool, with the one
+  // engine, and sets the container of results in the output variable.
+  private long signBatch(MessageContext msgCtxt, Batch.Mode batchMode, final XmlDsigEngine engine)
+      throws Exception {
+    List<Batch.Result> results =
+        Batch.run(
+            getBatchItems(msgCtxt, batchMode, null),
+            new Batch.Processor() {
+              public Batch.Result process(Document doc) throws Exception {
+                engine.sign(doc);
+                return new Batch.Result("signed", Signer.serialize(doc));
+              }
+            });
+    long outputSize = setOutput(msgCtxt, Batch.toXml(results), null);
+    msgCtxt.setVariable(varName("batch_count"), results.size());
+    msgCtxt.setVariable(
+        varName("batch_error_count"), Batch.count(results, Batch.STATUS_ERROR));
+    return outputSize;
+  }
 
-    public SignConfiguration withElementsToSign(List<String> elementsToSign) {
-      this.elementsToSign = elementsToSign;
-      return this;
+  private static void commit(
+      XmlDsigEvents.SignEvent event, MessageContext msgCtxt, Signer signer, long outputSize) {
+    event.end();
+    if (event.shouldCommit()) {
+      if (signer != null) {
+        Signer.SignConfiguration signConfiguration = signer.getConfiguration();
+        event.signatureType = signer.getSignatureType().name().toLowerCase();
+        event.algorithm = signConfiguration.signingMethod.name;
+        event.digest = signConfiguration.digestMethod.name;
+        event.keyFingerprint = XmlDsigEvents.fingerprint(signConfiguration.privatekey);
+      }
+      event.documentSize = outputSize;
+      event.cacheHit = Boolean.TRUE.equals(msgCtxt.getVariable(varName("cert_chain_cache_hit")));
+      event.outcome = (outputSize >= 0) ? "success" : "error";
+      event.commit();
     }
   }
 
   public ExecutionResult execute(final MessageContext msgCtxt, final ExecutionContext execContext) {
+    WarmUp.report(msgCtxt);
+    XmlDsigEvents.SignEvent event =
+        XmlDsigEvents.SUPPORTED ? new XmlDsigEvents.SignEvent() : null;
+    if (event != null) event.begin();
+    Signer signer = null;
+    Map<String, Object> details = new LinkedHashMap<String, Object>();
+    long outputSize = -1;
     try {
-      Document document = getDocument(msgCtxt);
-      SignConfiguration signConfiguration =
-          new SignConfiguration()
-              .withKey(getPrivateKey(msgCtxt))
-              // .withCertificate(getCertificate(msgCtxt))
-              .withKeyIdentifierType(getKeyIdentifierType(msgCtxt))
-              // .withIssuerNameStyle(getIssuerNameStyle(msgCtxt))
-              .withSigningMethod(getSigningMethod(msgCtxt))
-              .withDigestMethod(getDigestMethod(msgCtxt));
-      // .withElementsToSign(getElementsToSign(msgCtxt));
-
-      String resultingXmlString = sign_RSA(document, signConfiguration);
-      String outputVar = getOutputVar(msgCtxt);
-      msgCtxt.setVariable(outputVar, resultingXmlString);
+      Signer.SignatureType signatureType = getSignatureType(msgCtxt);
+      boolean isDetached = signatureType == Signer.SignatureType.DETACHED;
+      Batch.Mode batchMode = getBatchMode(msgCtxt);
+      if (batchMode != Batch.Mode.NONE) {
+        if (isDetached) {
+          throw new IllegalStateException("batch does not apply to signature-type detached");
+        }
+        XmlDsigEngine engine = getEngine(msgCtxt, signatureType);
+        signer = engine.getSigner();
+        signer.checkCertificate(details);
+        Bulkhead.Permit permit = enterBulkhead(msgCtxt, signer.getConfiguration().privatekeys);
+        try {
+          outputSize = signBatch(msgCtxt, batchMode, engine);
+        } finally {
+          if (permit != null) permit.release();
+        }
+        return ExecutionResult.SUCCESS;
+      }
+      OutputMode outputMode = getOutputMode(msgCtxt);
+      // splicing appends to the root, so it applies only to enveloped signatures,
+      // and it works on the source text, so not to compressed content
+      String sourceText =
+          (signatureType == Signer.SignatureType.ENVELOPED
+                  && outputMode == OutputMode.SPLICE
+                  && getContentEncoding(msgCtxt) == null)
+              ? getSourceText(msgCtxt)
+              : null;
+      if (sourceText != null && isCompressed(sourceText)) {
+        sourceText = null;
+      }
+      Document document =
+          isDetached
+              ? XmlUtils.newDocument()
+              : (sourceText != null) ? XmlUtils.parseXml(sourceText) : getDocument(msgCtxt);
+      signer = getEngine(msgCtxt, signatureType).getSigner();
+      signer.checkCertificate(details);
+      InputStream detachedContent = isDetached ? getDetachedContent(msgCtxt, false) : null;
+      List<Element> signatureElements;
+      Bulkhead.Permit permit = enterBulkhead(msgCtxt, signer.getConfiguration().privatekeys);
+      try {
+        signatureElements = signer.sign(document, detachedContent);
+      } finally {
+        if (permit != null) permit.release();
+      }
+      XmlDsigEvents.SerializeEvent serializeEvent =
+          XmlDsigEvents.SUPPORTED ? new XmlDsigEvents.SerializeEvent() : null;
+      if (serializeEvent != null) serializeEvent.begin();
+      String output =
+          (sourceText != null) ? spliceSignature(sourceText, document, signatureElements) : null;
+      if (serializeEvent != null) {
+        serializeEvent.outputMode = (output != null) ? "splice" : "serialize";
+      }
+      outputSize = setOutput(msgCtxt, output, document);
+      if (serializeEvent != null) {
+        serializeEvent.end();
+        if (serializeEvent.shouldCommit()) {
+          serializeEvent.documentSize = outputSize;
+          serializeEvent.commit();
+        }
+      }
+      String outputDocumentVar = getSimpleOptionalProperty("output-document-variable", msgCtxt);
+      if (outputDocumentVar != null) {
+        // the signed DOM, for subsequent steps that can use it without re-parsing
+        msgCtxt.setVariable(outputDocumentVar, document);
+      }
       return ExecutionResult.SUCCESS;
     } catch (IllegalStateException exc1) {
       setExceptionVariables(exc1, msgCtxt);
@@ -416,6 +423,11 @@ public class Sign extends XmlDsigCalloutBase implements Execution {
       }
       setExceptionVariables(e, msgCtxt);
       return ExecutionResult.ABORT;
+    } finally {
+      setDetailVariables(details, msgCtxt);
+      if (event != null) {
+        commit(event, msgCtxt, signer, outputSize);
+      }
     }
   }
 }
@@ -0,0 +1,156 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.edgecallouts.xmldsig;
+
+import com.google.apigee.xml.Namespaces;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.xml.XMLConstants;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Finds the Signature element to validate. Without a location, it checks the
+ * root and its direct children, where an enveloped or detached signature
+ * almost always is, before scanning the whole document. With a location, it
+ * evaluates that XPath. Compiled expressions are cached per expression and
+ * namespace declarations. XPathExpression is not thread-safe, so the cache is
+ * per thread.
+ */
+final class SignatureLocator {
+  private static final int MAX_CACHED_EXPRESSIONS = 64;
+  private static final ThreadLocal<Map<String, XPathExpression>> expressions =
+      new ThreadLocal<Map<String, XPathExpression>>() {
+        @Override
+        protected Map<String, XPathExpression> initialValue() {
+          return new LinkedHashMap<String, XPathExpression>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, XPathExpression> eldest) {
+              return size() > MAX_CACHED_EXPRESSIONS;
+            }
+          };
+        }
+      };
+
+  private SignatureLocator() {}
+
+  static Element find(Document doc) {
+    Element root = doc.getDocumentElement();
+    if (isSignature(root)) {
+      return root; // a detached signature
+    }
+    for (Node n = root.getFirstChild(); n != null; n = n.getNextSibling()) {
+      if (isSignature(n)) {
+        return (Element) n;
+      }
+    }
+    NodeList nl = doc.getElementsByTagNameNS(XMLSignature.XMLNS, "Signature");
+    if (nl.getLength() == 0) {
+      throw new RuntimeException("Couldn't find 'Signature' element");
+    }
+    return (Element) nl.item(0);
+  }
+
+  /**
+   * Evaluates the location, an XPath, against the document. The prefixes ds,
+   * soap10, wsu and wssec are predeclared; namespaceDeclarations, which may
+   * be null, adds or overrides others, as whitespace-separated prefix=uri
+   * pairs.
+   */
+  static Element find(Document doc, String location, String namespaceDeclarations)
+      throws XPathExpressionException {
+    String key =
+        (namespaceDeclarations == null) ? location : location + "\n" + namespaceDeclarations;
+    Map<String, XPathExpression> cache = expressions.get();
+    XPathExpression expression = cache.get(key);
+    if (expression == null) {
+      XPath xpath = XPathFactory.newInstance().newXPath();
+      xpath.setNamespaceContext(new MapNamespaceContext(parse(namespaceDeclarations)));
+      expression = xpath.compile(location);
+      cache.put(key, expression);
+    }
+    Node node = (Node) expression.evaluate(doc, XPathConstants.NODE);
+    if (!isSignature(node)) {
+      throw new IllegalStateException("signature-location does not select a Signature element");
+    }
+    return (Element) node;
+  }
+
+  private static boolean isSignature(Node node) {
+    return node != null
+        && node.getNodeType() == Node.ELEMENT_NODE
+        && "Signature".equals(node.getLocalName())
+        && XMLSignature.XMLNS.equals(node.getNamespaceURI());
+  }
+
+  private static Map<String, String> parse(String namespaceDeclarations) {
+    Map<String, String> prefixes = new HashMap<String, String>();
+    for (Map.Entry<String, String> e : Namespaces.defaultPrefixes.entrySet()) {
+      prefixes.put(e.getValue(), e.getKey());
+    }
+    if (namespaceDeclarations != null) {
+      for (String declaration : namespaceDeclarations.trim().split("\\s+")) {
+        int ix = declaration.indexOf('=');
+        if (ix <= 0) {
+          throw new IllegalStateException("invalid signature-location-namespaces");
+        }
+        prefixes.put(declaration.substring(0, ix), declaration.substring(ix + 1));
+      }
+    }
+    return prefixes;
+  }
+
+  private static final class MapNamespaceContext implements NamespaceContext {
+    private final Map<String, String> prefixes; // prefix -> uri
+
+    MapNamespaceContext(Map<String, String> prefixes) {
+      this.prefixes = prefixes;
+    }
+
+    public String getNamespaceURI(String prefix) {
+      String uri = prefixes.get(prefix);
+      return (uri == null) ? XMLConstants.NULL_NS_URI : uri;
+    }
+
+    public String getPrefix(String namespaceUri) {
+      for (Map.Entry<String, String> e : prefixes.entrySet()) {
+        if (e.getValue().equals(namespaceUri)) return e.getKey();
+      }
+      return null;
+    }
+
+    public Iterator<String> getPrefixes(String namespaceUri) {
+      String prefix = getPrefix(namespaceUri);
+      return (prefix == null)
+          ? Collections.<String>emptyIterator()
+          : Collections.singletonList(prefix).iterator();
+    }
+  }
+}
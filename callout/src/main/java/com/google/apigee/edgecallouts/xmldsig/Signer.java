@@ -0,0 +1,748 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.edgecallouts.xmldsig;
+
+import com.google.apigee.util.XmlUtils;
+import com.google.apigee.xml.Namespaces;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPrivateKey;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.spec.SecretKeySpec;
+import javax.naming.InvalidNameException;
+import javax.security.auth.x500.X500Principal;
+import javax.xml.crypto.MarshalException;
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.SignatureMethod;
+import javax.xml.crypto.dsig.SignedInfo;
+import javax.xml.crypto.dsig.Transform;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.XMLSignatureException;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMSignContext;
+import javax.xml.crypto.dsig.keyinfo.KeyInfo;
+import javax.xml.crypto.dsig.keyinfo.KeyInfoFactory;
+import javax.xml.crypto.dsig.spec.C14NMethodParameterSpec;
+import javax.xml.crypto.dsig.spec.SignatureMethodParameterSpec;
+import javax.xml.crypto.dsig.spec.TransformParameterSpec;
+import javax.xml.crypto.dsig.spec.XPathFilter2ParameterSpec;
+import javax.xml.crypto.dsig.spec.XPathType;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Signs documents with a fixed configuration: the keys, the certificate and
+ * the checks applied to it, the algorithms, and the form of the signature.
+ * A signer does not change once built, and may be shared by any number of
+ * threads. It depends on nothing from Apigee; the Sign callout resolves its
+ * properties into a signer, through {@link XmlDsigEngine}.
+ */
+final class Signer {
+  private static final XMLSignatureFactory signatureFactory =
+      XMLSignatureFactory.getInstance("DOM");
+  private static final String BASE64_BINARY =
+      "http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-soap-message-security-1.0#Base64Binary";
+  private static final String X509_V3 =
+      "http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-x509-token-profile-1.0#X509v3";
+  private static final String THUMBPRINT_SHA1 =
+      "http://docs.oasis-open.org/wss/oasis-wss-soap-message-security-1.1#ThumbprintSHA1";
+
+  enum SignatureType {
+    ENVELOPED,
+    DETACHED,
+    WS_SECURITY
+  }
+
+  enum KeyIdentifierType {
+    NOT_SPECIFIED,
+    X509_CERT_DIRECT,
+    RSA_KEY_VALUE,
+    THUMBPRINT,
+    BST_DIRECT_REFERENCE,
+    ISSUER_SERIAL;
+
+    static KeyIdentifierType fromString(String s) {
+      for (KeyIdentifierType t : KeyIdentifierType.values()) {
+        if (t.name().equals(s)) return t;
+      }
+      return KeyIdentifierType.NOT_SPECIFIED;
+    }
+  }
+
+  enum IssuerNameStyle {
+    NOT_SPECIFIED,
+    SHORT,
+    SUBJECT_DN
+  }
+
+  private final SignatureType signatureType;
+  private final SignConfiguration signConfiguration;
+  private final List<X509Certificate> intermediates;
+  private final CertificatePolicy certificatePolicy;
+  // of the certificate, reported with each signature
+  private final String issuerCommonName;
+  private final String thumbprint;
+
+  Signer(
+      SignatureType signatureType,
+      SignConfiguration signConfiguration,
+      List<X509Certificate> intermediates,
+      CertificatePolicy certificatePolicy)
+      throws GeneralSecurityException, InvalidNameException {
+    if (signConfiguration.privatekeys.size() > 1) {
+      if (signatureType != SignatureType.ENVELOPED) {
+        throw new IllegalStateException("private-keys requires signature-type enveloped");
+      }
+      if (signConfiguration.keyIdentifierType != KeyIdentifierType.RSA_KEY_VALUE) {
+        throw new IllegalStateException(
+            "private-keys requires key-identifier-type rsa_key_value");
+      }
+    }
+    this.signatureType = signatureType;
+    this.signConfiguration = signConfiguration;
+    this.intermediates = intermediates;
+    this.certificatePolicy = certificatePolicy;
+    X509Certificate certificate = signConfiguration.certificate;
+    this.issuerCommonName =
+        (certificate != null) ? Keys.getCommonName(certificate.getIssuerX500Principal()) : null;
+    this.thumbprint = (certificate != null) ? Keys.getThumbprintHex(certificate) : null;
+  }
+
+  SignatureType getSignatureType() {
+    return signatureType;
+  }
+
+  SignConfiguration getConfiguration() {
+    return signConfiguration;
+  }
+
+  // Reports the certificate in details, and checks it against the trust
+  // anchors and CRLs, if any. This is done once for a batch of documents.
+  void checkCertificate(Map<String, Object> details)
+      throws IOException, GeneralSecurityException {
+    X509Certificate certificate = signConfiguration.certificate;
+    if (certificate == null) return;
+    details.put("cert_issuer_cn", issuerCommonName);
+    details.put("cert_thumbprint", thumbprint);
+    if (certificatePolicy != null) {
+      certificatePolicy.check(certificate, intermediates, details);
+    }
+  }
+
+  // Signs the document in place, and returns the Signature elements added.
+  // With a detached signature, the document is empty, and the content is
+  // read from the stream.
+  List<Element> sign(Document doc, InputStream detachedContent) throws Exception {
+    if (signatureType == SignatureType.WS_SECURITY) {
+      return Collections.singletonList(sign_WSSEC(doc, signConfiguration));
+    }
+    if (signConfiguration.privatekeys.size() > 1) {
+      return sign_MultipleRSA(doc, signConfiguration);
+    }
+    return Collections.singletonList(sign_RSA(doc, signConfiguration, detachedContent));
+  }
+
+  private static SignedInfo newSignedInfo(
+      SignConfiguration signConfiguration, List<Reference> references)
+      throws NoSuchAlgorithmException, InvalidAlgorithmParameterException {
+    // add <SignatureMethod Algorithm="..."?>
+    if (!signConfiguration.signingMethod.isCompatibleWith(signConfiguration.privatekey)) {
+      throw new IllegalStateException("signing-method does not match the private key");
+    }
+    SignatureMethod signatureMethod =
+        signConfiguration.signingMethod.newSignatureMethod();
+
+    CanonicalizationMethod canonicalizationMethod =
+        signatureFactory.newCanonicalizationMethod(
+            CanonicalizationMethod.EXCLUSIVE, (C14NMethodParameterSpec) null);
+
+    // Create the SignedInfo
+    return signatureFactory.newSignedInfo(canonicalizationMethod, signatureMethod, references);
+  }
+
+  private static KeyInfo getKeyInfo(
+      Document doc, KeyInfoFactory kif, SignConfiguration signConfiguration)
+      throws CertificateEncodingException {
+    if (signConfiguration.keyIdentifierType == KeyIdentifierType.RSA_KEY_VALUE) {
+      // <KeyInfo>
+      //   <KeyValue>
+      //     <RSAKeyValue>
+      //       <Modulus>B6PenDyT58LjZlG6LYD27IFCh1yO+4...yCP9YNDtsLZftMLoQ==</Modulus>
+      //       <Exponent>AQAB</Exponent>
+      //     </RSAKeyValue>
+      //   </KeyValue>
+      // </KeyInfo>
+      Element keyValue = doc.createElementNS(Namespaces.XMLDSIG, "KeyValue");
+      Element rsaKeyValue = doc.createElementNS(Namespaces.XMLDSIG, "RSAKeyValue");
+      Element modulus = doc.createElementNS(Namespaces.XMLDSIG, "Modulus");
+      Element exponent = doc.createElementNS(Namespaces.XMLDSIG, "Exponent");
+
+      if (!(signConfiguration.privatekey instanceof RSAPrivateKey)) {
+        throw new IllegalStateException("RSA_KEY_VALUE requires an RSA private key");
+      }
+      RSAPrivateKey configPrivateKey = (RSAPrivateKey) signConfiguration.privatekey;
+      final byte[] keyModulus = configPrivateKey.getModulus().toByteArray();
+      String encodedModulus = Base64.getEncoder().encodeToString(keyModulus);
+      modulus.setTextContent(encodedModulus);
+      // final byte[] publicExponent = configPrivateKey.getPublicExponent().toByteArray();
+      // String encodedPublicExponent = Base64.getEncoder().encodeToString(publicExponent);
+      exponent.setTextContent("AQAB");
+      rsaKeyValue.appendChild(modulus);
+      rsaKeyValue.appendChild(exponent);
+      keyValue.appendChild(rsaKeyValue);
+      javax.xml.crypto.XMLStructure structure = new javax.xml.crypto.dom.DOMStructure(keyValue);
+      return kif.newKeyInfo(java.util.Collections.singletonList(structure));
+
+      // KeyValue kv = kif.newKeyValue(kp.getPublic());
+      //
+      // // new DOMSignContext(kp.getPrivate(), doc.getDocumentElement());
+      // //
+      // // The marshalled XMLSignature will be added as the last child element
+      // // of the specified parent node unless a next sibling node is specified
+      // // by invoking the setNextSibling method.
+      //
+      // DOMSignContext signingContext = new DOMSignContext(kp.getPrivate(),
+      // doc.getDocumentElement());
+      // XMLSignature signature =
+      //     signatureFactory.newXMLSignature(signedInfo,
+      // kif.newKeyInfo(Collections.singletonList(kv)));
+
+    } else if (signConfiguration.keyIdentifierType == KeyIdentifierType.X509_CERT_DIRECT) {
+      // <KeyInfo>
+      //   <X509Data>
+      //     <X509Certificate>MIICAjCCAWugAw....AQnEdD9tI7IYAAoK4O+35EOzcXbvc4Kzz7BQnulQ=</X509Certificate>
+      //   </X509Data>
+      // </KeyInfo>
+      Element x509Data = doc.createElementNS(Namespaces.XMLDSIG, "X509Data");
+      Element x509Certificate = doc.createElementNS(Namespaces.XMLDSIG, "X509Certificate");
+      if (signConfiguration.certificate == null) {
+        throw new IllegalStateException("missing certificate");
+      }
+      x509Certificate.setTextContent(
+          Base64.getEncoder().encodeToString(signConfiguration.certificate.getEncoded()));
+      x509Data.appendChild(x509Certificate);
+      javax.xml.crypto.XMLStructure structure = new javax.xml.crypto.dom.DOMStructure(x509Data);
+      return kif.newKeyInfo(java.util.Collections.singletonList(structure));
+    }
+    throw new IllegalStateException(
+        "key-identifier-type "
+            + signConfiguration.keyIdentifierType.name()
+            + " requires signature-type ws-security");
+  }
+
+  private static Element sign_RSA(
+      Document doc, SignConfiguration signConfiguration, InputStream detachedContent)
+      throws InstantiationException, NoSuchAlgorithmException, InvalidAlgorithmParameterException,
+          KeyException, MarshalException, XMLSignatureException, TransformerException,
+          CertificateEncodingException {
+    DigestMethod digestMethod =
+        signConfiguration.digestMethod.getDigestMethod();
+
+    boolean isDetached = signConfiguration.detachedUri != null;
+    Reference reference;
+    if (isDetached) {
+      // no transforms: the raw content bytes are digested as they are read
+      reference = signatureFactory.newReference(signConfiguration.detachedUri, digestMethod);
+    } else {
+      Transform transform =
+          signatureFactory.newTransform(Transform.ENVELOPED, (TransformParameterSpec) null);
+      // Transform transform =
+      //     signatureFactory.newTransform(
+      //         "http://www.w3.org/2001/10/xml-exc-c14n#", (TransformParameterSpec) null);
+      reference =
+          signatureFactory.newReference(
+              "", digestMethod, Collections.singletonList(transform), null, null);
+    }
+
+    SignedInfo signedInfo =
+        newSignedInfo(signConfiguration, Collections.singletonList(reference));
+    KeyInfo keyInfo = getKeyInfo(doc, signatureFactory.getKeyInfoFactory(), signConfiguration);
+
+    // DOMSignContext signingContext = new DOMSignContext(signConfiguration.privatekey,
+    // wssecHeader);
+    if (isDetached) {
+      // a detached Signature is the root of its own document
+      DOMSignContext signingContext = new DOMSignContext(signConfiguration.privatekey, doc);
+      signingContext.setURIDereferencer(
+          new DetachedContentDereferencer(
+              signConfiguration.detachedUri,
+              detachedContent,
+              signatureFactory.getURIDereferencer()));
+      XMLSignature signature = signatureFactory.newXMLSignature(signedInfo, keyInfo);
+      signature.sign(signingContext);
+      return doc.getDocumentElement();
+    }
+
+    DOMSignContext signingContext =
+        new DOMSignContext(signConfiguration.privatekey, doc.getDocumentElement());
+    XMLSignature signature = signatureFactory.newXMLSignature(signedInfo, keyInfo);
+    signature.sign(signingContext);
+    // the marshalled Signature is appended as the last child of the root
+    return (Element) doc.getDocumentElement().getLastChild();
+  }
+
+  // Each Signature from multiple signers covers the same content: the root,
+  // less the Signature elements directly under it, so that adding one does not
+  // break another. A Signature deeper in the content is covered like the rest.
+  // With a digest value, the Reference is not digested again when signing.
+  private static Reference newMultiSignerReference(
+      SignConfiguration signConfiguration, byte[] digestValue)
+      throws NoSuchAlgorithmException, InvalidAlgorithmParameterException {
+    XPathType filter =
+        new XPathType(
+            "/*/ds:Signature",
+            XPathType.Filter.SUBTRACT,
+            Collections.singletonMap("ds", Namespaces.XMLDSIG));
+    List<Transform> transforms =
+        Arrays.asList(
+            signatureFactory.newTransform(
+                Transform.XPATH2, new XPathFilter2ParameterSpec(Collections.singletonList(filter))),
+            signatureFactory.newTransform(
+                CanonicalizationMethod.EXCLUSIVE, (TransformParameterSpec) null));
+    DigestMethod digestMethod =
+        signConfiguration.digestMethod.getDigestMethod();
+    return (digestValue == null)
+        ? signatureFactory.newReference("", digestMethod, transforms, null, null)
+        : signatureFactory.newReference("", digestMethod, transforms, null, null, digestValue);
+  }
+
+  // Computes the digest of the content shared by all signers. The JSR-105 API
+  // digests a Reference only while signing, so this signs with a throwaway
+  // HMAC key, which costs next to nothing, and discards that Signature.
+  private static byte[] digestSharedContent(Document doc, SignConfiguration signConfiguration)
+      throws NoSuchAlgorithmException, InvalidAlgorithmParameterException, MarshalException,
+          XMLSignatureException {
+    Reference reference = newMultiSignerReference(signConfiguration, null);
+    SignedInfo signedInfo =
+        signatureFactory.newSignedInfo(
+            signatureFactory.newCanonicalizationMethod(
+                CanonicalizationMethod.EXCLUSIVE, (C14NMethodParameterSpec) null),
+            signatureFactory.newSignatureMethod(
+                SignatureMethod.HMAC_SHA1, (SignatureMethodParameterSpec) null),
+            Collections.singletonList(reference));
+    Element root = doc.getDocumentElement();
+    DOMSignContext signingContext =
+        new DOMSignContext(new SecretKeySpec(new byte[20], "HmacSHA1"), root);
+    signatureFactory.newXMLSignature(signedInfo, null).sign(signingContext);
+    root.removeChild(root.getLastChild());
+    return reference.getDigestValue();
+  }
+
+  // Signs the shared digest with one key, into a document of its own: a DOM
+  // is not safe for concurrent changes, and the exclusive c14n of SignedInfo
+  // does not depend on where the Signature is eventually placed.
+  private static Element signSharedDigest(
+      SignConfiguration signConfiguration, byte[] digestValue)
+      throws ParserConfigurationException, NoSuchAlgorithmException,
+          InvalidAlgorithmParameterException, CertificateEncodingException, MarshalException,
+          XMLSignatureException {
+    Document scratch = XmlUtils.newDocument();
+    Reference reference = newMultiSignerReference(signConfiguration, digestValue);
+    SignedInfo signedInfo =
+        newSignedInfo(signConfiguration, Collections.singletonList(reference));
+    KeyInfo keyInfo = getKeyInfo(scratch, signatureFactory.getKeyInfoFactory(), signConfiguration);
+    DOMSignContext signingContext = new DOMSignContext(signConfiguration.privatekey, scratch);
+    signatureFactory.newXMLSignature(signedInfo, keyInfo).sign(signingContext);
+    return scratch.getDocumentElement();
+  }
+
+  // Appends one enveloped Signature per key to the root, in the order of the
+  // keys. The reference digest is computed once, and the RSA operations run
+  // in parallel, the first on the calling thread.
+  private static List<Element> sign_MultipleRSA(
+      Document doc, final SignConfiguration signConfiguration) throws Exception {
+    final byte[] digestValue = digestSharedContent(doc, signConfiguration);
+    List<Future<Element>> futures = new ArrayList<Future<Element>>();
+    for (final PrivateKey key : signConfiguration.privatekeys.subList(
+        1, signConfiguration.privatekeys.size())) {
+      futures.add(
+          SignerPool.executor.submit(
+              new Callable<Element>() {
+                public Element call() throws Exception {
+                  return signSharedDigest(signConfiguration.forKey(key), digestValue);
+                }
+              }));
+    }
+    List<Element> signatures = new ArrayList<Element>();
+    try {
+      signatures.add(
+          signSharedDigest(
+              signConfiguration.forKey(signConfiguration.privatekeys.get(0)), digestValue));
+      for (Future<Element> future : futures) {
+        signatures.add(future.get());
+      }
+    } catch (ExecutionException e) {
+      throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+    } finally {
+      for (Future<Element> future : futures) {
+        future.cancel(true);
+      }
+    }
+    Element root = doc.getDocumentElement();
+    List<Element> result = new ArrayList<Element>();
+    for (Element signature : signatures) {
+      result.add((Element) root.appendChild(doc.importNode(signature, true)));
+    }
+    return result;
+  }
+
+  // Runs the RSA operations for the second and later of multiple signers.
+  // Created on first use, with daemon threads, as many as the batch pool. When
+  // the queue is full, the operation runs on the calling thread instead.
+  private static final class SignerPool {
+    static final int QUEUE_CAPACITY = 4 * Batch.POOL_SIZE;
+    static final ExecutorService executor =
+        new ThreadPoolExecutor(
+            Batch.POOL_SIZE,
+            Batch.POOL_SIZE,
+            0L,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY),
+            new ThreadFactory() {
+              private final AtomicInteger count = new AtomicInteger();
+
+              public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "xmldsig-signer-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+              }
+            },
+            new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  // Returns the prefix declared on the envelope for the namespace, declaring
+  // the default prefix there if the namespace is not yet in use.
+  private static String declareNamespace(Element envelope, String namespaceUri) {
+    String prefix = Namespaces.getExistingNamespaces(envelope).get(namespaceUri);
+    if (prefix == null) {
+      prefix = Namespaces.defaultPrefixes.get(namespaceUri);
+      envelope.setAttributeNS(Namespaces.XMLNS, "xmlns:" + prefix, namespaceUri);
+    }
+    return prefix;
+  }
+
+  private static Element getChildElement(Element parent, String namespaceUri, String localName) {
+    for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+      if (n.getNodeType() == Node.ELEMENT_NODE
+          && namespaceUri.equals(n.getNamespaceURI())
+          && localName.equals(n.getLocalName())) {
+        return (Element) n;
+      }
+    }
+    return null;
+  }
+
+  // Returns the wsu:Id of the element, assigning one if it has none.
+  private static String setWsuId(Element element, String wsuPrefix, String idPrefix) {
+    String id = element.getAttributeNS(Namespaces.WSU, "Id");
+    if (id == null || id.equals("")) {
+      id = idPrefix + "-" + UUID.randomUUID().toString();
+      element.setAttributeNS(Namespaces.WSU, wsuPrefix + ":Id", id);
+    }
+    return id;
+  }
+
+  // Builds the wssec:SecurityTokenReference forms of KeyInfo. The other key
+  // identifier types are handled as for a plain signature.
+  private static KeyInfo getSecurityTokenReference(
+      Document doc,
+      KeyInfoFactory kif,
+      SignConfiguration signConfiguration,
+      Element security,
+      String wsuPrefix,
+      String wssecPrefix)
+      throws CertificateEncodingException, NoSuchAlgorithmException, InvalidNameException {
+    KeyIdentifierType kit = signConfiguration.keyIdentifierType;
+    if (kit == KeyIdentifierType.RSA_KEY_VALUE || kit == KeyIdentifierType.X509_CERT_DIRECT) {
+      return getKeyInfo(doc, kif, signConfiguration);
+    }
+    X509Certificate certificate = signConfiguration.certificate;
+    if (certificate == null) {
+      throw new IllegalStateException("missing certificate");
+    }
+    Element secTokenRef =
+        doc.createElementNS(Namespaces.WSSEC, wssecPrefix + ":SecurityTokenReference");
+    if (kit == KeyIdentifierType.BST_DIRECT_REFERENCE) {
+      // <wssec:BinarySecurityToken wsu:Id="BST-..." EncodingType="...#Base64Binary"
+      //     ValueType="...#X509v3">MIIC...</wssec:BinarySecurityToken>
+      // ...
+      // <KeyInfo>
+      //   <wssec:SecurityTokenReference>
+      //     <wssec:Reference URI="#BST-..." ValueType="...#X509v3"/>
+      //   </wssec:SecurityTokenReference>
+      // </KeyInfo>
+      Element bst = doc.createElementNS(Namespaces.WSSEC, wssecPrefix + ":BinarySecurityToken");
+      String bstId = setWsuId(bst, wsuPrefix, "BST");
+      bst.setAttribute("EncodingType", BASE64_BINARY);
+      bst.setAttribute("ValueType", X509_V3);
+      bst.setTextContent(Base64.getEncoder().encodeToString(certificate.getEncoded()));
+      security.appendChild(bst);
+      Element reference = doc.createElementNS(Namespaces.WSSEC, wssecPrefix + ":Reference");
+      reference.setAttribute("URI", "#" + bstId);
+      reference.setAttribute("ValueType", X509_V3);
+      secTokenRef.appendChild(reference);
+    } else if (kit == KeyIdentifierType.THUMBPRINT) {
+      // <wssec:KeyIdentifier ValueType="...#ThumbprintSHA1"
+      //     EncodingType="...#Base64Binary">9JscCwWHk5IvR/6JLTSayTY7M=</wssec:KeyIdentifier>
+      Element keyIdentifier = doc.createElementNS(Namespaces.WSSEC, wssecPrefix + ":KeyIdentifier");
+      keyIdentifier.setAttribute("ValueType", THUMBPRINT_SHA1);
+      keyIdentifier.setAttribute("EncodingType", BASE64_BINARY);
+      keyIdentifier.setTextContent(Keys.getThumbprintBase64(certificate));
+      secTokenRef.appendChild(keyIdentifier);
+    } else {
+      // <X509Data>
+      //   <X509IssuerSerial>
+      //     <X509IssuerName>CN=issuer.example.com</X509IssuerName>
+      //     <X509SerialNumber>4660</X509SerialNumber>
+      //   </X509IssuerSerial>
+      // </X509Data>
+      Element x509Data = doc.createElementNS(Namespaces.XMLDSIG, "X509Data");
+      Element issuerSerial = doc.createElementNS(Namespaces.XMLDSIG, "X509IssuerSerial");
+      Element issuerName = doc.createElementNS(Namespaces.XMLDSIG, "X509IssuerName");
+      Element serialNumber = doc.createElementNS(Namespaces.XMLDSIG, "X509SerialNumber");
+      X500Principal issuer = certificate.getIssuerX500Principal();
+      issuerName.setTextContent(
+          (signConfiguration.issuerNameStyle == IssuerNameStyle.SUBJECT_DN)
+              ? issuer.getName()
+              : "CN=" + Keys.getCommonName(issuer));
+      serialNumber.setTextContent(certificate.getSerialNumber().toString());
+      issuerSerial.appendChild(issuerName);
+      issuerSerial.appendChild(serialNumber);
+      x509Data.appendChild(issuerSerial);
+      secTokenRef.appendChild(x509Data);
+    }
+    javax.xml.crypto.XMLStructure structure = new javax.xml.crypto.dom.DOMStructure(secTokenRef);
+    return kif.newKeyInfo(java.util.Collections.singletonList(structure));
+  }
+
+  // Signs a SOAP 1.1 envelope per WS-Security: adds a wsu:Timestamp to the
+  // wssec:Security header, and places there a Signature with one Reference
+  // to the Body and one to the Timestamp, each by wsu:Id.
+  private static Element sign_WSSEC(Document doc, SignConfiguration signConfiguration)
+      throws InstantiationException, NoSuchAlgorithmException, InvalidAlgorithmParameterException,
+          KeyException, MarshalException, XMLSignatureException, CertificateEncodingException,
+          InvalidNameException {
+    DigestMethod digestMethod =
+        signConfiguration.digestMethod.getDigestMethod();
+
+    Element envelope = doc.getDocumentElement();
+    if (!Namespaces.SOAP10.equals(envelope.getNamespaceURI())
+        || !"Envelope".equals(envelope.getLocalName())) {
+      throw new IllegalStateException("the document is not a SOAP 1.1 Envelope");
+    }
+    Element body = getChildElement(envelope, Namespaces.SOAP10, "Body");
+    if (body == null) {
+      throw new IllegalStateException("the Envelope has no Body");
+    }
+    String soapPrefix = declareNamespace(envelope, Namespaces.SOAP10);
+    String wsuPrefix = declareNamespace(envelope, Namespaces.WSU);
+    String wssecPrefix = declareNamespace(envelope, Namespaces.WSSEC);
+
+    Element header = getChildElement(envelope, Namespaces.SOAP10, "Header");
+    if (header == null) {
+      header = doc.createElementNS(Namespaces.SOAP10, soapPrefix + ":Header");
+      envelope.insertBefore(header, body);
+    }
+    Element security = getChildElement(header, Namespaces.WSSEC, "Security");
+    if (security == null) {
+      security = doc.createElementNS(Namespaces.WSSEC, wssecPrefix + ":Security");
+      security.setAttributeNS(Namespaces.SOAP10, soapPrefix + ":mustUnderstand", "1");
+      header.appendChild(security);
+    }
+
+    // <wsu:Timestamp wsu:Id="TS-...">
+    //   <wsu:Created>2020-03-05T20:05:09Z</wsu:Created>
+    //   <wsu:Expires>2020-03-05T20:10:09Z</wsu:Expires>
+    // </wsu:Timestamp>
+    Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+    Element timestamp = doc.createElementNS(Namespaces.WSU, wsuPrefix + ":Timestamp");
+    Element created = doc.createElementNS(Namespaces.WSU, wsuPrefix + ":Created");
+    created.setTextContent(DateTimeFormatter.ISO_INSTANT.format(now));
+    timestamp.appendChild(created);
+    if (signConfiguration.expiresInSeconds > 0) {
+      Element expires = doc.createElementNS(Namespaces.WSU, wsuPrefix + ":Expires");
+      Instant expiry = now.plusSeconds(signConfiguration.expiresInSeconds);
+      expires.setTextContent(DateTimeFormatter.ISO_INSTANT.format(expiry));
+      timestamp.appendChild(expires);
+    }
+    security.appendChild(timestamp);
+
+    String bodyId = setWsuId(body, wsuPrefix, "Body");
+    String timestampId = setWsuId(timestamp, wsuPrefix, "TS");
+
+    Transform transform =
+        signatureFactory.newTransform(
+            CanonicalizationMethod.EXCLUSIVE, (TransformParameterSpec) null);
+    List<Reference> references =
+        Arrays.asList(
+            signatureFactory.newReference(
+                "#" + bodyId, digestMethod, Collections.singletonList(transform), null, null),
+            signatureFactory.newReference(
+                "#" + timestampId, digestMethod, Collections.singletonList(transform), null, null));
+
+    SignedInfo signedInfo = newSignedInfo(signConfiguration, references);
+    KeyInfo keyInfo =
+        getSecurityTokenReference(
+            doc,
+            signatureFactory.getKeyInfoFactory(),
+            signConfiguration,
+            security,
+            wsuPrefix,
+            wssecPrefix);
+
+    DOMSignContext signingContext = new DOMSignContext(signConfiguration.privatekey, security);
+    // Registering the Ids lets each Reference be resolved by a map lookup, so
+    // the Body subtree is walked once, by the canonicalizer, while digesting.
+    signingContext.setIdAttributeNS(body, Namespaces.WSU, "Id");
+    signingContext.setIdAttributeNS(timestamp, Namespaces.WSU, "Id");
+    XMLSignature signature = signatureFactory.newXMLSignature(signedInfo, keyInfo);
+    signature.sign(signingContext);
+    // the marshalled Signature is appended as the last child of the Security header
+    return (Element) security.getLastChild();
+  }
+
+  static String serialize(Document doc) throws TransformerException {
+    // emit the resulting document
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    serialize(doc, baos);
+    return new String(baos.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  static void serialize(Document doc, OutputStream out) throws TransformerException {
+    Transformer transformer = TransformerFactory.newInstance().newTransformer();
+    transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+    transformer.transform(new DOMSource(doc), new StreamResult(out));
+  }
+
+  static class SignConfiguration {
+    public PrivateKey privatekey; // required
+    public List<PrivateKey> privatekeys; // more than one for multiple signers
+    public X509Certificate certificate; // required
+    public AlgorithmRegistry.SignatureAlgorithm signingMethod;
+    public AlgorithmRegistry.DigestAlgorithm digestMethod;
+    public IssuerNameStyle issuerNameStyle;
+    public KeyIdentifierType keyIdentifierType;
+    public List<String> elementsToSign;
+    public String detachedUri;
+    public int expiresInSeconds;
+
+    public SignConfiguration() {
+      keyIdentifierType = KeyIdentifierType.RSA_KEY_VALUE;
+    }
+
+    public SignConfiguration withKey(PrivateKey key) {
+      this.privatekey = key;
+      this.privatekeys = Collections.singletonList(key);
+      return this;
+    }
+
+    public SignConfiguration withKeys(List<PrivateKey> keys) {
+      this.privatekey = keys.get(0);
+      this.privatekeys = keys;
+      return this;
+    }
+
+    // A copy of this configuration for just one of the signers.
+    SignConfiguration forKey(PrivateKey key) {
+      return new SignConfiguration()
+          .withKey(key)
+          .withCertificate(certificate)
+          .withKeyIdentifierType(keyIdentifierType)
+          .withIssuerNameStyle(issuerNameStyle)
+          .withSigningMethod(signingMethod)
+          .withDigestMethod(digestMethod);
+    }
+
+    public SignConfiguration withKeyIdentifierType(KeyIdentifierType kit) {
+      this.keyIdentifierType = kit;
+      return this;
+    }
+
+    public SignConfiguration withIssuerNameStyle(IssuerNameStyle ins) {
+      this.issuerNameStyle = ins;
+      return this;
+    }
+
+    public SignConfiguration withCertificate(X509Certificate certificate) {
+      this.certificate = certificate;
+      return this;
+    }
+
+    public SignConfiguration withSigningMethod(
+        AlgorithmRegistry.SignatureAlgorithm signingMethod) {
+      this.signingMethod = signingMethod;
+      return this;
+    }
+
+    public SignConfiguration withDigestMethod(AlgorithmRegistry.DigestAlgorithm digestMethod) {
+      this.digestMethod = digestMethod;
+      return this;
+    }
+
+    public SignConfiguration withElementsToSign(List<String> elementsToSign) {
+      this.elementsToSign = elementsToSign;
+      return this;
+    }
+
+    public SignConfiguration withDetachedUri(String uri) {
+      this.detachedUri = uri;
+      return this;
+    }
+
+    public SignConfiguration withExpiry(int expiresInSeconds) {
+      this.expiresInSeconds = expiresInSeconds;
+      return this;
+    }
+  }
+}
@@ -0,0 +1,205 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.edgecallouts.xmldsig;
+
+import com.google.apigee.util.XmlUtils;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.w3c.dom.Document;
+
+/**
+ * A local HTTP server, for services on the same host that are not running in
+ * Apigee, built on the JDK's com.sun.net.httpserver. POST a document to /sign
+ * to receive it signed, or to /validate to receive {@code valid} or {@code
+ * invalid}. GET /stats returns the number of documents and groups run. The
+ * keys and options are read once, at startup, from options named as the
+ * policy properties, with file paths in place of PEM strings:
+ *
+ * <pre>
+ * java -cp ... com.google.apigee.edgecallouts.xmldsig.SigningServer \
+ *     --port 8088 --private-key key.pem --public-key pub.pem --signing-method rsa-sha256
+ * </pre>
+ *
+ * Connections are kept alive between requests. Requests are handled on
+ * virtual threads where the JVM has them, and otherwise on a bounded pool;
+ * either way the crypto for concurrent requests is grouped by a {@link
+ * MicroBatcher} onto the batch pool, one thread per processor, with the next
+ * group starting as soon as a worker is free. The server
+ * listens on the loopback interface only.
+ */
+public final class SigningServer {
+  private static final int DEFAULT_PORT = 8088;
+  private static final int DEFAULT_THREADS = 4 * Runtime.getRuntime().availableProcessors();
+  private static final int DEFAULT_MAX_GROUP_SIZE = Runtime.getRuntime().availableProcessors();
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final MicroBatcher[] batchers;
+
+  private SigningServer(HttpServer server, ExecutorService executor, MicroBatcher... batchers) {
+    this.server = server;
+    this.executor = executor;
+    this.batchers = batchers;
+  }
+
+  public static void main(String[] args) throws Exception {
+    SigningServer server = start(CommandLine.parse(args));
+    System.out.printf("listening on http://localhost:%d/\n", server.getPort());
+  }
+
+  /** Starts a server with the given options; a port of 0 picks a free port. */
+  public static SigningServer start(Map<String, String> options) throws Exception {
+    CommandLine.addProvider();
+    final XmlDsigEngine engine = CommandLine.newEngine(options);
+    int maxGroupSize = CommandLine.getInt(options, "max-group-size", DEFAULT_MAX_GROUP_SIZE);
+    MicroBatcher signer =
+        new MicroBatcher(
+            "sign",
+            new Batch.Processor() {
+              public Batch.Result process(Document doc) throws Exception {
+                engine.sign(doc);
+                return new Batch.Result("signed", Signer.serialize(doc));
+              }
+            },
+            maxGroupSize);
+    MicroBatcher validator =
+        new MicroBatcher(
+            "validate",
+            new Batch.Processor() {
+              public Batch.Result process(Document doc) throws Exception {
+                return new Batch.Result(engine.validate(doc) ? "valid" : "invalid", null);
+              }
+            },
+            maxGroupSize);
+
+    ExecutorService executor = newVirtualThreadExecutor();
+    if (executor == null) {
+      executor =
+          Executors.newFixedThreadPool(CommandLine.getInt(options, "threads", DEFAULT_THREADS));
+    }
+    HttpServer server =
+        HttpServer.create(
+            new InetSocketAddress(
+                InetAddress.getLoopbackAddress(),
+                CommandLine.getInt(options, "port", DEFAULT_PORT)),
+            0);
+    server.createContext("/sign", newHandler(signer));
+    server.createContext("/validate", newHandler(validator));
+    server.createContext("/stats", newStatsHandler(signer, validator));
+    server.setExecutor(executor);
+    server.start();
+    return new SigningServer(server, executor, signer, validator);
+  }
+
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  /** Stops accepting requests, and stops the request threads and dispatchers. */
+  public void stop() {
+    server.stop(0);
+    executor.shutdown();
+    for (MicroBatcher batcher : batchers) {
+      batcher.close();
+    }
+  }
+
+  private static HttpHandler newHandler(final MicroBatcher batcher) {
+    return new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          if (!exchange.getRequestMethod().equals("POST")) {
+            respond(exchange, 405, "text/plain", "method not allowed\n");
+            return;
+          }
+          Document doc;
+          try {
+            doc = XmlUtils.parseXml(exchange.getRequestBody());
+          } catch (Exception e) {
+            respond(exchange, 400, "text/plain", "request is not well-formed XML\n");
+            return;
+          }
+          Batch.Result result = batcher.submit(doc);
+          exchange.getResponseHeaders().set("X-Xmldsig-Status", result.status);
+          if (result.error != null) {
+            respond(exchange, 422, "text/plain", result.error + "\n");
+          } else if (result.content != null) {
+            respond(exchange, 200, "application/xml", result.content);
+          } else {
+            respond(exchange, 200, "text/plain", result.status + "\n");
+          }
+        } catch (Exception e) {
+          respond(exchange, 500, "text/plain", "internal error\n");
+        } finally {
+          exchange.close();
+        }
+      }
+    };
+  }
+
+  // The number of documents and of groups each batcher has run; the ratio is
+  // the mean group size.
+  private static HttpHandler newStatsHandler(
+      final MicroBatcher signer, final MicroBatcher validator) {
+    return new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          respond(
+              exchange,
+              200,
+              "text/plain",
+              String.format(
+                  "sign_items %d\nsign_groups %d\nvalidate_items %d\nvalidate_groups %d\n",
+                  signer.getItemCount(),
+                  signer.getGroupCount(),
+                  validator.getItemCount(),
+                  validator.getGroupCount()));
+        } finally {
+          exchange.close();
+        }
+      }
+    };
+  }
+
+  // A fixed-length response, so that the connection can be kept alive.
+  private static void respond(HttpExchange exchange, int status, String contentType, String body)
+      throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(bytes);
+    out.close();
+  }
+
+  private static ExecutorService newVirtualThreadExecutor() {
+    try {
+      return (ExecutorService)
+          Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+}
@@ -18,87 +18,240 @@ package com.google.apigee.edgecallouts.xmldsig;
 import com.apigee.flow.execution.ExecutionContext;
 import com.apigee.flow.execution.ExecutionResult;
 import com.apigee.flow.execution.spi.Execution;
-import com.apigee.flow.message.Message;
 import com.apigee.flow.message.MessageContext;
-import java.io.IOException;
-import java.io.StringReader;
-import java.security.KeyFactory;
-import java.security.NoSuchAlgorithmException;
+import java.io.InputStream;
 import java.security.PublicKey;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.RSAPublicKeySpec;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import javax.xml.crypto.KeySelector;
-import javax.xml.crypto.MarshalException;
+import java.util.regex.Pattern;
 import javax.xml.crypto.dsig.XMLSignature;
-import javax.xml.crypto.dsig.XMLSignatureException;
-import javax.xml.crypto.dsig.XMLSignatureFactory;
-import javax.xml.crypto.dsig.dom.DOMValidateContext;
-import org.bouncycastle.asn1.pkcs.RSAPublicKey;
-import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
-import org.bouncycastle.openssl.PEMParser;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 
 public class Validate extends XmlDsigCalloutBase implements Execution {
+    private static final Pattern leadingSpacePattern = Pattern.compile("([\\r|\\n] +)");
+    // The properties that configure the engine; see getEngine.
+    private static final String[] ENGINE_PROPERTIES = {
+        "public-key", "public-keys", "key-ring-max-attempts",
+        "trust-anchors", "certificate-cache-ttl", "crl-files", "crl-refresh-interval",
+        "signature-location", "signature-location-namespaces", "fail-fast",
+        "max-document-bytes", "max-depth", "max-signatures", "max-references",
+        "allowed-algorithms", "allowed-transforms"
+    };
 
     public Validate(Map properties) {
         super(properties);
     }
 
-    private static PublicKey readPublicKey(String publicKeyPemString)
-        throws NoSuchAlgorithmException, InvalidKeySpecException, IOException
+    private PublicKey getPublicKey(MessageContext msgCtxt) throws Exception {
+        String publicKeyPemString = getSimpleRequiredProperty("public-key", msgCtxt);
+        publicKeyPemString = publicKeyPemString.trim();
+
+        // clear any leading whitespace on each line
+        publicKeyPemString = leadingSpacePattern.matcher(publicKeyPemString).replaceAll("\n");
+        final String pem = publicKeyPemString;
+        return new XmlDsigEvents.Timed<XmlDsigEvents.KeyLoadEvent, PublicKey>() {
+            PublicKey run() throws Exception {
+                return Keys.readPublicKey(pem);
+            }
+
+            void describe(XmlDsigEvents.KeyLoadEvent event, PublicKey publicKey) {
+                XmlDsigEvents.describeKeys(event, "public-key",
+                                           (publicKey != null) ? Arrays.asList(publicKey) : null);
+            }
+        }.in(XmlDsigEvents.newKeyLoadEvent());
+    }
+
+    // The engine for the resolved configuration. The properties that produce
+    // warnings are read for each message, so that every message that resolves
+    // them reports the warning, and the keys only when the engine is built.
+    // The public key is required unless public-keys or trust-anchors is set.
+    private XmlDsigEngine getEngine(final MessageContext msgCtxt, final PolicyGate gate)
+        throws Exception
     {
-        PEMParser pr = new PEMParser(new StringReader(publicKeyPemString));
-        Object o = pr.readObject();
-        if (o instanceof SubjectPublicKeyInfo) {
-            SubjectPublicKeyInfo subjectPublicKeyInfo = (SubjectPublicKeyInfo) o;
-            RSAPublicKey pubKey = RSAPublicKey.getInstance(subjectPublicKeyInfo.parsePublicKey());
+        final int keyRingMaxAttempts = getKeyRingMaxAttempts(msgCtxt);
+        final boolean failFast = getFailFast(msgCtxt);
+        final CertificatePolicy certificatePolicy = getCertificatePolicy(msgCtxt);
+        return getEngine(msgCtxt, ENGINE_PROPERTIES, new EngineFactory() {
+                public XmlDsigEngine newEngine() throws Exception {
+                    XmlDsigEngine.Builder builder = XmlDsigEngine.newBuilder()
+                        .withKeyRingMaxAttempts(keyRingMaxAttempts)
+                        .withCertificatePolicy(certificatePolicy)
+                        .withPolicyGate(gate)
+                        .withSignatureLocation(
+                            getSimpleOptionalProperty("signature-location", msgCtxt),
+                            getSimpleOptionalProperty("signature-location-namespaces", msgCtxt))
+                        .withFailFast(failFast);
+                    String keyRingSpec = getSimpleOptionalProperty("public-keys", msgCtxt);
+                    if (keyRingSpec != null) {
+                        builder.withPublicKeys(keyRingSpec);
+                    }
+                    else if (getSimpleOptionalProperty("trust-anchors", msgCtxt) == null
+                             || getSimpleOptionalProperty("public-key", msgCtxt) != null) {
+                        builder.withPublicKey(getPublicKey(msgCtxt));
+                    }
+                    return builder.build();
+                }
+            });
+    }
 
-            PublicKey publicKey = KeyFactory
-                .getInstance("RSA")
-                .generatePublic(new RSAPublicKeySpec(pubKey.getModulus(), pubKey.getPublicExponent()));
+    private boolean getFailFast(MessageContext msgCtxt) {
+        String value = getSimpleOptionalProperty("fail-fast", msgCtxt);
+        return value != null && value.trim().equalsIgnoreCase("true");
+    }
 
-            return publicKey;
+    private int getKeyRingMaxAttempts(MessageContext msgCtxt) {
+        String value = getSimpleOptionalProperty("key-ring-max-attempts", msgCtxt);
+        if (value == null) return 0;
+        try {
+            return Math.max(0, Integer.parseInt(value));
+        }
+        catch (NumberFormatException nfe) {
+            msgCtxt.setVariable(varName("warning"), "invalid key-ring-max-attempts");
+            return 0;
         }
-        throw new IllegalStateException("Didn't find an RSA Public Key");
     }
 
-    private PublicKey getPublicKey(MessageContext msgCtxt) throws Exception {
-        String publicKeyPemString = getSimpleRequiredProperty("public-key", msgCtxt);
-        publicKeyPemString = publicKeyPemString.trim();
+    private void commit(XmlDsigEvents.ValidateEvent event, MessageContext msgCtxt,
+                        Element signatureElement, PublicKey publicKey, String outcome) {
+        event.end();
+        if (event.shouldCommit()) {
+            String sourceVariable = getSimpleOptionalProperty("source", msgCtxt);
+            if (sourceVariable != null) {
+                Object source = msgCtxt.getVariable(sourceVariable);
+                if (source instanceof String) {
+                    event.documentSize = ((String) source).length();
+                }
+            }
+            if (signatureElement != null) {
+                NodeList nl = signatureElement.getElementsByTagNameNS(XMLSignature.XMLNS, "SignatureMethod");
+                if (nl.getLength() > 0) {
+                    event.algorithm = ((Element) nl.item(0)).getAttribute("Algorithm");
+                }
+            }
+            if (publicKey != null) {
+                event.keyFingerprint = XmlDsigEvents.fingerprint(publicKey);
+            }
+            event.cacheHit = Boolean.TRUE.equals(msgCtxt.getVariable(varName("cert_chain_cache_hit")));
+            event.outcome = outcome;
+            event.commit();
+        }
+    }
 
-        // clear any leading whitespace on each line
-        publicKeyPemString = publicKeyPemString.replaceAll("([\\r|\\n] +)","\n");
-        return readPublicKey(publicKeyPemString);
+    private int getLimit(String name, MessageContext msgCtxt) {
+        String value = getSimpleOptionalProperty(name, msgCtxt);
+        if (value == null) return -1;
+        try {
+            return Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException nfe) {
+            throw new IllegalStateException("invalid " + name);
+        }
     }
 
-    private static boolean validate_RSA_SHA256(Document doc, PublicKey publicKey)
-        throws MarshalException,
-               XMLSignatureException
+    // Returns null when no limit is configured.
+    private PolicyGate getPolicyGate(MessageContext msgCtxt) {
+        PolicyGate gate = new PolicyGate();
+        gate.maxDocumentBytes = getLimit("max-document-bytes", msgCtxt);
+        gate.maxDepth = getLimit("max-depth", msgCtxt);
+        gate.maxSignatures = getLimit("max-signatures", msgCtxt);
+        gate.maxReferences = getLimit("max-references", msgCtxt);
+        gate.allowedAlgorithms =
+            PolicyGate.parseList(getSimpleOptionalProperty("allowed-algorithms", msgCtxt));
+        gate.allowedTransforms =
+            PolicyGate.parseList(getSimpleOptionalProperty("allowed-transforms", msgCtxt));
+        boolean isActive = gate.maxDocumentBytes >= 0 || gate.maxDepth >= 0
+            || gate.maxSignatures >= 0 || gate.maxReferences >= 0
+            || gate.allowedAlgorithms != null || gate.allowedTransforms != null;
+        return isActive ? gate : null;
+    }
+
+    // Validates each document of the batch on the worker pool, against the
+    // one public-key or the key in public-keys that its KeyInfo identifies.
+    // The policy limits other than max-document-bytes apply to each document.
+    private String validateBatch(MessageContext msgCtxt, Batch.Mode batchMode,
+                                 PolicyGate gate)
+        throws Exception
     {
-        NodeList nl = doc.getElementsByTagNameNS(XMLSignature.XMLNS, "Signature");
-        if (nl.getLength() == 0) {
-            throw new RuntimeException("Couldn't find 'Signature' element");
+        if (getSimpleOptionalProperty("trust-anchors", msgCtxt) != null
+            || getSimpleOptionalProperty("crl-files", msgCtxt) != null
+            || getSimpleOptionalProperty("detached-content", msgCtxt) != null) {
+            throw new IllegalStateException("batch requires public-key or public-keys");
         }
-        Element element = (Element) nl.item(0);
-        KeySelector ks = KeySelector.singletonKeySelector(publicKey);
-        DOMValidateContext vc = new DOMValidateContext(ks, element);
-        XMLSignatureFactory signatureFactory = XMLSignatureFactory.getInstance("DOM");
-        XMLSignature signature = signatureFactory.unmarshalXMLSignature(vc);
-        return signature.validate(vc);
+        final XmlDsigEngine engine = getEngine(msgCtxt, gate);
+        List<Object> items = getBatchItems(msgCtxt, batchMode, gate);
+        List<Batch.Result> results;
+        Bulkhead.Permit permit = enterBulkhead(msgCtxt, engine.getVerifier().getPublicKey());
+        try {
+            results = Batch.run(items, new Batch.Processor() {
+                    public Batch.Result process(Document doc) throws Exception {
+                        return new Batch.Result(engine.validate(doc) ? "valid" : "invalid", null);
+                    }
+                });
+        }
+        finally {
+            if (permit != null) permit.release();
+        }
+
+        String outputVar = getSimpleOptionalProperty("output-variable", msgCtxt);
+        msgCtxt.setVariable((outputVar != null) ? outputVar : varName("batch_result"),
+                            Batch.toXml(results));
+        int validCount = Batch.count(results, "valid");
+        msgCtxt.setVariable(varName("batch_count"), results.size());
+        msgCtxt.setVariable(varName("batch_valid_count"), validCount);
+        msgCtxt.setVariable(varName("batch_error_count"), Batch.count(results, Batch.STATUS_ERROR));
+        boolean allValid = validCount == results.size();
+        msgCtxt.setVariable(varName("valid"), allValid);
+        return allValid ? "valid" : "invalid";
     }
 
     public ExecutionResult execute (final MessageContext msgCtxt,
                                     final ExecutionContext execContext) {
+        WarmUp.report(msgCtxt);
+        XmlDsigEvents.ValidateEvent event =
+            XmlDsigEvents.SUPPORTED ? new XmlDsigEvents.ValidateEvent() : null;
+        if (event != null) event.begin();
+        Element signatureElement = null;
+        PublicKey publicKey = null;
+        Map<String, Object> details = new LinkedHashMap<String, Object>();
+        String outcome = "error";
         try {
-            Document document = getDocument(msgCtxt);
-            PublicKey publicKey = getPublicKey(msgCtxt);
-            boolean isValid = validate_RSA_SHA256(document, publicKey);
+            PolicyGate gate = getPolicyGate(msgCtxt);
+            Batch.Mode batchMode = getBatchMode(msgCtxt);
+            if (batchMode != Batch.Mode.NONE) {
+                outcome = validateBatch(msgCtxt, batchMode, gate);
+                return ExecutionResult.SUCCESS;
+            }
+            Document document = getDocument(msgCtxt, gate);
+            Verifier verifier = getEngine(msgCtxt, gate).getVerifier();
+            signatureElement = verifier.findSignature(document);
+            publicKey = verifier.selectKey(signatureElement, details);
+            InputStream detachedContent =
+                (getSimpleOptionalProperty("detached-content", msgCtxt) != null)
+                ? getDetachedContent(msgCtxt, true) : null;
+            boolean isValid = false;
+            if (publicKey != null) {
+                Bulkhead.Permit permit = enterBulkhead(msgCtxt, publicKey);
+                try {
+                    isValid = verifier.verify(signatureElement, publicKey, detachedContent,
+                                              details);
+                }
+                finally {
+                    if (permit != null) permit.release();
+                }
+            }
             msgCtxt.setVariable(varName("valid"), isValid);
+            outcome = isValid ? "valid" : "invalid";
             return ExecutionResult.SUCCESS;
         }
+        catch (PolicyGate.Violation violation) {
+            msgCtxt.setVariable(varName("policy_violation_detail"), violation.detail);
+            setExceptionVariables(violation, msgCtxt);
+            return ExecutionResult.ABORT;
+        }
         catch (IllegalStateException exc1) {
             setExceptionVariables(exc1, msgCtxt);
             return ExecutionResult.ABORT;
@@ -111,6 +264,12 @@ public class Validate extends XmlDsigCalloutBase implements Execution {
             setExceptionVariables(e,msgCtxt);
             return ExecutionResult.ABORT;
         }
+        finally {
+            setDetailVariables(details, msgCtxt);
+            if (event != null) {
+                commit(event, msgCtxt, signatureElement, publicKey, outcome);
+            }
+        }
     }
 
 }
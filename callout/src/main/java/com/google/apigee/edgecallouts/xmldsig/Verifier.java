@@ -0,0 +1,418 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.edgecallouts.xmldsig;
+
+import com.google.apigee.xml.Namespaces;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.security.PublicKey;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.xml.crypto.KeySelector;
+import javax.xml.crypto.MarshalException;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.XMLSignatureException;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMValidateContext;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Validates signatures with a fixed configuration: the public key or key
+ * ring, the checks applied to an embedded certificate, the policy limits, and
+ * where to find the Signature. A verifier does not change once built, and may
+ * be shared by any number of threads. It depends on nothing from Apigee; the
+ * Validate callout resolves its properties into a verifier, through {@link
+ * XmlDsigEngine}.
+ *
+ * <p>Validation takes three steps, so that a caller can act between them:
+ * {@link #findSignature}, {@link #selectKey}, and {@link #verify}.
+ */
+final class Verifier {
+  private static final XMLSignatureFactory signatureFactory =
+      XMLSignatureFactory.getInstance("DOM");
+  private final PublicKey publicKey;
+  private final KeyRing keyRing;
+  private final int keyRingMaxAttempts;
+  private final CertificatePolicy certificatePolicy;
+  private final PolicyGate gate;
+  private final String signatureLocation;
+  private final String signatureLocationNamespaces;
+  private final boolean failFast;
+
+  /**
+   * Either the public key or the key ring is required, unless the
+   * certificate policy has trust anchors, in which case the key of the
+   * embedded certificate is used. Any of the others may be null.
+   */
+  Verifier(
+      PublicKey publicKey,
+      KeyRing keyRing,
+      int keyRingMaxAttempts,
+      CertificatePolicy certificatePolicy,
+      PolicyGate gate,
+      String signatureLocation,
+      String signatureLocationNamespaces,
+      boolean failFast) {
+    if (publicKey == null
+        && keyRing == null
+        && (certificatePolicy == null || !certificatePolicy.hasTrustAnchors())) {
+      throw new IllegalStateException("engine has no public key");
+    }
+    this.publicKey = publicKey;
+    this.keyRing = keyRing;
+    this.keyRingMaxAttempts = keyRingMaxAttempts;
+    this.certificatePolicy = certificatePolicy;
+    this.gate = gate;
+    this.signatureLocation = signatureLocation;
+    this.signatureLocationNamespaces = signatureLocationNamespaces;
+    this.failFast = failFast;
+  }
+
+  PublicKey getPublicKey() {
+    return publicKey;
+  }
+
+  PolicyGate getGate() {
+    return gate;
+  }
+
+  // Applies the policy limits, if any, and returns the Signature to validate.
+  Element findSignature(Document doc) throws Exception {
+    if (gate != null) {
+      gate.check(doc);
+    }
+    return (signatureLocation == null)
+        ? getSignatureElement(doc)
+        : SignatureLocator.find(doc, signatureLocation, signatureLocationNamespaces);
+  }
+
+  /**
+   * Returns the key with which to verify the signature, or null when no key
+   * in the ring verifies its SignatureValue. With trust anchors or CRLs, the
+   * certificate in the KeyInfo must pass those checks, and its key must be
+   * the key returned.
+   */
+  PublicKey selectKey(Element signatureElement, Map<String, Object> details) throws Exception {
+    if (keyRing != null) {
+      return selectFromKeyRing(signatureElement, details);
+    }
+    X509Certificate certificate = checkEmbeddedCertificate(signatureElement, details);
+    if (certificate == null) {
+      return publicKey;
+    }
+    if (publicKey == null) {
+      return certificate.getPublicKey();
+    }
+    if (!publicKey.equals(certificate.getPublicKey())) {
+      throw new IllegalStateException("certificate does not match public-key");
+    }
+    return publicKey;
+  }
+
+  /** Returns true if the signature is valid. With fail-fast, reports where it failed. */
+  boolean verify(
+      Element signatureElement,
+      PublicKey key,
+      InputStream detachedContent,
+      Map<String, Object> details)
+      throws MarshalException, XMLSignatureException {
+    if (!failFast) {
+      return validate_RSA_SHA256(signatureElement, key, detachedContent, gate != null);
+    }
+    Diagnosis diagnosis =
+        validateFailFast(signatureElement, key, detachedContent, gate != null);
+    diagnosis.report(details);
+    return diagnosis.valid;
+  }
+
+  // Selects the key from the ring using the KeyInfo, so that only one full
+  // verification is performed. When the KeyInfo identifies no key, up to
+  // key-ring-max-attempts keys are tried against the SignatureValue.
+  private PublicKey selectFromKeyRing(Element signatureElement, Map<String, Object> details)
+      throws Exception {
+    KeyRing.Selection selection = keyRing.select(signatureElement);
+    if (selection != null) {
+      details.put("key_ring_match", selection.matchedBy);
+      return checkKeyRingCertificate(selection.key, signatureElement, details);
+    }
+    if (keyRingMaxAttempts == 0) {
+      throw new IllegalStateException("no key in public-keys matches the KeyInfo");
+    }
+    List<PublicKey> keys = keyRing.getKeys();
+    for (int i = 0; i < Math.min(keyRingMaxAttempts, keys.size()); i++) {
+      if (signatureValueIsValid(signatureElement, keys.get(i))) {
+        details.put("key_ring_match", "fallback");
+        return checkKeyRingCertificate(keys.get(i), signatureElement, details);
+      }
+    }
+    details.put("key_ring_match", "none");
+    return null;
+  }
+
+  // With trust-anchors or crl-files, a key from the ring is used only if it
+  // is the key of a certificate in the KeyInfo that passes those checks.
+  private PublicKey checkKeyRingCertificate(
+      PublicKey key, Element signatureElement, Map<String, Object> details) throws Exception {
+    X509Certificate certificate = checkEmbeddedCertificate(signatureElement, details);
+    if (certificate != null
+        && !Arrays.equals(key.getEncoded(), certificate.getPublicKey().getEncoded())) {
+      throw new IllegalStateException("certificate does not match public-keys");
+    }
+    return key;
+  }
+
+  // Checks the certificate in the KeyInfo against trust-anchors and
+  // crl-files, and returns it. Returns null when neither is set.
+  private X509Certificate checkEmbeddedCertificate(
+      Element signatureElement, Map<String, Object> details) throws Exception {
+    if (certificatePolicy == null) {
+      return null;
+    }
+    List<X509Certificate> certificates = getEmbeddedCertificates(signatureElement);
+    if (certificates.size() == 0) {
+      throw new IllegalStateException("KeyInfo does not contain a certificate");
+    }
+    X509Certificate certificate = certificates.get(0);
+    details.put("cert_thumbprint", Keys.getThumbprintHex(certificate));
+    certificatePolicy.check(certificate, certificates.subList(1, certificates.size()), details);
+    return certificate;
+  }
+
+  // Only the certificates in KeyInfo/X509Data: a ds:Object elsewhere in the
+  // Signature may hold any content, including certificates.
+  static List<X509Certificate> getEmbeddedCertificates(Element signatureElement)
+      throws CertificateException {
+    List<Node> nodes = new ArrayList<Node>();
+    for (Node k = signatureElement.getFirstChild(); k != null; k = k.getNextSibling()) {
+      if (!isDsigElement(k, "KeyInfo")) continue;
+      for (Node d = k.getFirstChild(); d != null; d = d.getNextSibling()) {
+        if (!isDsigElement(d, "X509Data")) continue;
+        for (Node c = d.getFirstChild(); c != null; c = c.getNextSibling()) {
+          if (isDsigElement(c, "X509Certificate")) {
+            nodes.add(c);
+          }
+        }
+      }
+    }
+    if (nodes.isEmpty() && signatureElement.getParentNode() instanceof Element) {
+      // a WS-Security signature carries its certificate in a
+      // BinarySecurityToken alongside it in the Security header
+      NodeList nl =
+          ((Element) signatureElement.getParentNode())
+              .getElementsByTagNameNS(Namespaces.WSSEC, "BinarySecurityToken");
+      for (int i = 0; i < nl.getLength(); i++) {
+        nodes.add(nl.item(i));
+      }
+    }
+    List<X509Certificate> certificates = new ArrayList<X509Certificate>();
+    if (nodes.isEmpty()) {
+      return certificates;
+    }
+    CertificateFactory certFactory = CertificateFactory.getInstance("X.509");
+    for (Node node : nodes) {
+      byte[] encoded = Base64.getMimeDecoder().decode(node.getTextContent());
+      certificates.add(
+          (X509Certificate) certFactory.generateCertificate(new ByteArrayInputStream(encoded)));
+    }
+    return certificates;
+  }
+
+  // The URI of the Reference in the SignedInfo to content outside the
+  // document, or null if there is none. The detached content is a single
+  // stream, which can be digested only once, so a signature with more than
+  // one such Reference is rejected rather than reported invalid.
+  private static String getExternalReferenceUri(Element signatureElement) {
+    String externalUri = null;
+    for (Node n = signatureElement.getFirstChild(); n != null; n = n.getNextSibling()) {
+      if (!isDsigElement(n, "SignedInfo")) continue;
+      for (Node r = n.getFirstChild(); r != null; r = r.getNextSibling()) {
+        if (!isDsigElement(r, "Reference")) continue;
+        String uri = ((Element) r).getAttribute("URI");
+        if (uri.equals("") || uri.startsWith("#")) continue;
+        if (externalUri != null) {
+          throw new IllegalStateException(
+              "detached-content supports only one external Reference");
+        }
+        externalUri = uri;
+      }
+    }
+    return externalUri;
+  }
+
+  private static boolean isDsigElement(Node n, String localName) {
+    return n.getNodeType() == Node.ELEMENT_NODE
+        && XMLSignature.XMLNS.equals(n.getNamespaceURI())
+        && localName.equals(n.getLocalName());
+  }
+
+  static Element getSignatureElement(Document doc) {
+    return SignatureLocator.find(doc);
+  }
+
+  // References by "#id" to wsu:Id attributes, as in WS-Security, resolve
+  // only if those attributes are registered as IDs. The referenced ids are
+  // collected from the SignedInfo, and looked for only where WS-Security
+  // places signed parts: among the children of each ancestor of the
+  // Signature, that is the Timestamp beside it, the other header blocks, and
+  // the Body. A wsu:Id deeper in the document is not registered.
+  private static void registerWsuIds(Element signatureElement, DOMValidateContext vc) {
+    Set<String> ids = new HashSet<String>();
+    NodeList references =
+        signatureElement.getElementsByTagNameNS(XMLSignature.XMLNS, "Reference");
+    for (int i = 0; i < references.getLength(); i++) {
+      String uri = ((Element) references.item(i)).getAttribute("URI");
+      if (uri.startsWith("#")) {
+        ids.add(uri.substring(1));
+      }
+    }
+    if (ids.isEmpty()) {
+      return;
+    }
+    for (Node parent = signatureElement.getParentNode();
+        parent instanceof Element && !ids.isEmpty();
+        parent = parent.getParentNode()) {
+      for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+        if (n.getNodeType() == Node.ELEMENT_NODE
+            && ids.remove(((Element) n).getAttributeNS(Namespaces.WSU, "Id"))) {
+          vc.setIdAttributeNS((Element) n, Namespaces.WSU, "Id");
+        }
+      }
+    }
+  }
+
+  static boolean validate_RSA_SHA256(
+      Element element, PublicKey publicKey, InputStream detachedContent, boolean secureValidation)
+      throws MarshalException, XMLSignatureException {
+    DOMValidateContext vc =
+        newValidateContext(element, publicKey, detachedContent, secureValidation);
+    XMLSignature signature = signatureFactory.unmarshalXMLSignature(vc);
+    return signature.validate(vc);
+  }
+
+  private static DOMValidateContext newValidateContext(
+      Element element,
+      PublicKey publicKey,
+      InputStream detachedContent,
+      boolean secureValidation) {
+    KeySelector ks = KeySelector.singletonKeySelector(publicKey);
+    DOMValidateContext vc = new DOMValidateContext(ks, element);
+    if (secureValidation) {
+      vc.setProperty(PolicyGate.SECURE_VALIDATION, Boolean.TRUE);
+    }
+    registerWsuIds(element, vc);
+    if (detachedContent != null) {
+      // re-stream the external content through the reference digest
+      vc.setURIDereferencer(
+          new DetachedContentDereferencer(
+              getExternalReferenceUri(element),
+              detachedContent,
+              signatureFactory.getURIDereferencer()));
+    }
+    return vc;
+  }
+
+  // The outcome of a fail-fast validation, and where it failed.
+  static final class Diagnosis {
+    boolean valid;
+    String failure; // "signature-value" or "reference", or null when valid
+    int referencesChecked;
+    int referenceIndex = -1;
+    String referenceUri;
+    byte[] expectedDigest;
+    byte[] computedDigest;
+    long micros;
+
+    void report(Map<String, Object> details) {
+      details.put("validation_micros", micros);
+      details.put("references_checked", referencesChecked);
+      if (failure == null) {
+        return;
+      }
+      details.put("failure", failure);
+      if (referenceIndex >= 0) {
+        Base64.Encoder encoder = Base64.getEncoder();
+        details.put("failed_reference_index", referenceIndex);
+        details.put("failed_reference_uri", (referenceUri != null) ? referenceUri : "");
+        if (expectedDigest != null) {
+          details.put("failed_reference_expected_digest", encoder.encodeToString(expectedDigest));
+        }
+        if (computedDigest != null) {
+          details.put("failed_reference_computed_digest", encoder.encodeToString(computedDigest));
+        }
+      }
+    }
+  }
+
+  // Checks the SignatureValue, which costs one canonicalization of the
+  // SignedInfo and one public-key operation, before any reference, and then
+  // digests the references in order, stopping at the first that does not
+  // match. Valid exactly when signature.validate would be.
+  static Diagnosis validateFailFast(
+      Element element, PublicKey publicKey, InputStream detachedContent, boolean secureValidation)
+      throws MarshalException, XMLSignatureException {
+    long start = System.nanoTime();
+    Diagnosis diagnosis = new Diagnosis();
+    try {
+        DOMValidateContext vc =
+          newValidateContext(element, publicKey, detachedContent, secureValidation);
+      XMLSignature signature = signatureFactory.unmarshalXMLSignature(vc);
+      if (!signature.getSignatureValue().validate(vc)) {
+        diagnosis.failure = "signature-value";
+        return diagnosis;
+      }
+      List<?> references = signature.getSignedInfo().getReferences();
+      for (int i = 0; i < references.size(); i++) {
+        Reference reference = (Reference) references.get(i);
+        diagnosis.referencesChecked++;
+        if (!reference.validate(vc)) {
+          diagnosis.failure = "reference";
+          diagnosis.referenceIndex = i;
+          diagnosis.referenceUri = reference.getURI();
+          diagnosis.expectedDigest = reference.getDigestValue();
+          diagnosis.computedDigest = reference.getCalculatedDigestValue();
+          return diagnosis;
+        }
+      }
+      diagnosis.valid = true;
+      return diagnosis;
+    } finally {
+      diagnosis.micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+    }
+  }
+
+  // Checks only the SignatureValue, which is cheap compared to digesting
+  // the references.
+  private static boolean signatureValueIsValid(Element element, PublicKey publicKey)
+      throws MarshalException, XMLSignatureException {
+    DOMValidateContext vc =
+        new DOMValidateContext(KeySelector.singletonKeySelector(publicKey), element);
+    XMLSignature signature = signatureFactory.unmarshalXMLSignature(vc);
+    return signature.getSignatureValue().validate(vc);
+  }
+}
@@ -0,0 +1,168 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.edgecallouts.xmldsig;
+
+import com.apigee.flow.message.MessageContext;
+import com.google.apigee.util.XmlUtils;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.w3c.dom.Document;
+
+/**
+ * Signs and validates a small embedded document with a throwaway key, on a
+ * background thread, so that provider registration, service loading, factory
+ * discovery, and JIT compilation of the c14n and RSA code happen before real
+ * traffic arrives rather than during it. Runs at most once per JVM, and stops
+ * when the time per round levels off. Requests never wait for it.
+ */
+final class WarmUp {
+  private static final int MIN_ROUNDS = 100;
+  private static final int MAX_ROUNDS = 1000;
+  private static final int WINDOW = 10;
+  private static final long MAX_MILLIS = 30000L;
+  private static final String sampleXml =
+      "<order xmlns='urn:example:warm-up'>"
+          + "<item sku='872-AA'><name>Lawnmower</name><quantity>1</quantity></item>"
+          + "<item sku='926-AA'><name>Baby Monitor</name><quantity>1</quantity></item>"
+          + "</order>";
+
+  enum Status {
+    NOT_STARTED,
+    RUNNING,
+    COMPLETE,
+    FAILED
+  }
+
+  private static final AtomicBoolean started = new AtomicBoolean(false);
+  private static volatile Status status = Status.NOT_STARTED;
+  private static volatile long elapsedMillis;
+  private static volatile int rounds;
+  private static volatile String error;
+
+  private WarmUp() {}
+
+  /** Starts the warm-up on a background thread, if it has not been started. */
+  static void startOnce() {
+    if (!started.compareAndSet(false, true)) {
+      return;
+    }
+    status = Status.RUNNING;
+    Thread t =
+        new Thread(
+            new Runnable() {
+              public void run() {
+                runRounds();
+              }
+            },
+            "xmldsig-warm-up");
+    t.setDaemon(true);
+    t.setPriority(Thread.MIN_PRIORITY);
+    t.start();
+  }
+
+  /**
+   * Sets the warm-up status in the context; once finished, its duration, and
+   * the reason if it failed.
+   */
+  static void report(MessageContext msgCtxt) {
+    Status s = status;
+    if (s == Status.NOT_STARTED) {
+      return;
+    }
+    msgCtxt.setVariable(XmlDsigCalloutBase.varName("warmup_status"), s.name().toLowerCase());
+    if (s != Status.RUNNING) {
+      msgCtxt.setVariable(XmlDsigCalloutBase.varName("warmup_millis"), elapsedMillis);
+      msgCtxt.setVariable(XmlDsigCalloutBase.varName("warmup_rounds"), rounds);
+    }
+    if (s == Status.FAILED) {
+      msgCtxt.setVariable(XmlDsigCalloutBase.varName("warmup_error"), error);
+    }
+  }
+
+  // The status is written last, so that a reader that sees it finished also
+  // sees the duration, rounds and error written before it.
+  private static void runRounds() {
+    long start = System.nanoTime();
+    Status result = Status.FAILED;
+    int n = 0;
+    try {
+      KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+      kpg.initialize(2048);
+      KeyPair keyPair = kpg.generateKeyPair();
+      String privateKeyPem = toPem("PRIVATE KEY", keyPair.getPrivate().getEncoded());
+      String publicKeyPem = toPem("PUBLIC KEY", keyPair.getPublic().getEncoded());
+
+      long[] times = new long[MAX_ROUNDS];
+      while (n < MAX_ROUNDS) {
+        long roundStart = System.nanoTime();
+        round(privateKeyPem, publicKeyPem);
+        times[n++] = System.nanoTime() - roundStart;
+        if (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) > MAX_MILLIS) break;
+        if (n >= MIN_ROUNDS && isLevel(times, n)) break;
+      }
+      result = Status.COMPLETE;
+    } catch (Exception e) {
+      error = e.toString();
+    } finally {
+      rounds = n;
+      elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      status = result;
+    }
+  }
+
+  private static void round(String privateKeyPem, String publicKeyPem) throws Exception {
+    XmlDsigEngine engine =
+        XmlDsigEngine.newBuilder()
+            .withPrivateKeyPem(privateKeyPem, "")
+            .withSigningMethod("rsa-sha256")
+            .withDigestMethod("sha256")
+            .withPublicKeyPem(publicKeyPem)
+            .build();
+    Document doc = XmlUtils.parseXml(sampleXml);
+    engine.sign(doc);
+    String signedXml = Signer.serialize(doc);
+
+    if (!engine.validate(XmlUtils.parseXml(signedXml))) {
+      throw new IllegalStateException("warm-up signature did not validate");
+    }
+  }
+
+  // True when the mean time of the latest window of rounds is within 10% of
+  // the mean of the window before it.
+  private static boolean isLevel(long[] times, int n) {
+    if (n < 2 * WINDOW) return false;
+    long recent = 0;
+    long previous = 0;
+    for (int i = 0; i < WINDOW; i++) {
+      recent += times[n - 1 - i];
+      previous += times[n - 1 - WINDOW - i];
+    }
+    return Math.abs(recent - previous) * 10 <= previous;
+  }
+
+  private static String toPem(String type, byte[] encoded) {
+    return "-----BEGIN "
+        + type
+        + "-----\n"
+        + Base64.getMimeEncoder().encodeToString(encoded)
+        + "\n-----END "
+        + type
+        + "-----\n";
+  }
+}
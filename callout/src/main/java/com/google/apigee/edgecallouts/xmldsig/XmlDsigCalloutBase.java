@@ -16,38 +16,57 @@
 package com.google.apigee.edgecallouts.xmldsig;
 
 import com.apigee.flow.message.MessageContext;
+import com.google.apigee.util.ContentEncoding;
 import com.google.apigee.util.XmlUtils;
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
+import java.io.PushbackInputStream;
 import java.io.StringWriter;
 import java.nio.charset.StandardCharsets;
-import java.security.KeyException;
+import java.security.Key;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.cert.Certificate;
-import java.security.cert.CertificateEncodingException;
-import java.security.cert.CertificateFactory;
-import java.security.cert.X509Certificate;
-import java.util.Base64;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import javax.naming.InvalidNameException;
-import javax.naming.ldap.LdapName;
-import javax.naming.ldap.Rdn;
-import javax.security.auth.x500.X500Principal;
-import javax.xml.bind.DatatypeConverter;
 import org.w3c.dom.Document;
 
 public abstract class XmlDsigCalloutBase {
   private static final String _varprefix = "xmldsig_";
+  private static final long DEFAULT_CERTIFICATE_CACHE_TTL_SECONDS = 3600L;
+  private static final long DEFAULT_CRL_REFRESH_INTERVAL_SECONDS = 60L;
+  private static final long DEFAULT_MAX_CONCURRENT_WAIT_MILLIS = 100L;
   private Map properties; // read-only
   private static final String variableReferencePatternString = "(.*?)\\{([^\\{\\} ]+?)\\}(.*?)";
   private static final Pattern variableReferencePattern =
       Pattern.compile(variableReferencePatternString);
+  private static final int MAX_ENGINES = 64;
+  // Least recently used first. Properties may refer to flow variables, so the
+  // number of distinct configurations is not known in advance.
+  private static final Map<String, XmlDsigEngine> engines =
+      Collections.synchronizedMap(
+          new LinkedHashMap<String, XmlDsigEngine>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, XmlDsigEngine> eldest) {
+              return size() > MAX_ENGINES;
+            }
+          });
 
   public XmlDsigCalloutBase(Map properties) {
     this.properties = properties;
+    String warmUp = (String) properties.get("warm-up");
+    if (warmUp != null && warmUp.trim().equalsIgnoreCase("true")) {
+      WarmUp.startOnce();
+    }
   }
 
   static String varName(String s) {
@@ -55,15 +74,222 @@ public abstract class XmlDsigCalloutBase {
   }
 
   protected Document getDocument(MessageContext msgCtxt) throws Exception {
+    return getDocument(msgCtxt, null);
+  }
+
+  // With a gate, the size limit is applied before or while reading the source.
+  protected Document getDocument(MessageContext msgCtxt, PolicyGate gate) throws Exception {
+    String source = getSimpleOptionalProperty("source", msgCtxt);
+    String sourceText = null;
+    InputStream sourceStream = null;
+    if (source != null) {
+      Object sourceObject = msgCtxt.getVariable(source);
+      if (sourceObject == null) {
+        throw new IllegalStateException("source variable resolves to null");
+      }
+      // an earlier step may have left a parsed DOM in the variable; use it as is.
+      // Its size in bytes is not known, so max-document-bytes cannot apply;
+      // the limits on the tree still do.
+      if (sourceObject instanceof Document) {
+        if (gate != null && gate.maxDocumentBytes >= 0) {
+          msgCtxt.setVariable(
+              varName("warning"), "max-document-bytes does not apply to a Document source");
+        }
+        return (Document) sourceObject;
+      }
+      // bytes or a stream may be compressed; a String never is.
+      if (sourceObject instanceof byte[]) {
+        sourceStream = new ByteArrayInputStream((byte[]) sourceObject);
+      } else if (sourceObject instanceof InputStream) {
+        sourceStream = (InputStream) sourceObject;
+      } else if (sourceObject instanceof String) {
+        sourceText = (String) sourceObject;
+        if (gate != null) {
+          gate.checkSize(sourceText);
+        }
+      } else {
+        throw new IllegalStateException("source variable has an unsupported type");
+      }
+    }
+    if (sourceText == null && sourceStream == null) {
+      sourceStream = msgCtxt.getMessage().getContentAsStream();
+    }
+    final String text = sourceText;
+    final InputStream stream = sourceStream;
+    return new XmlDsigEvents.Timed<XmlDsigEvents.ParseEvent, Document>() {
+      Document run() throws Exception {
+        if (text != null) {
+          return XmlUtils.parseXml(text);
+        }
+        InputStream in = decodedStream(stream, msgCtxt);
+        long spillThreshold = getSpillThreshold(msgCtxt);
+        return (gate != null)
+            ? gate.parse(in, spillThreshold)
+            : XmlUtils.parseXml(in, spillThreshold);
+      }
+
+      void describe(XmlDsigEvents.ParseEvent event, Document document) {
+        event.source = (text != null) ? "string" : "stream";
+        event.documentSize = (text != null) ? text.length() : -1;
+        event.outcome = (document != null) ? "success" : "error";
+      }
+    }.in(XmlDsigEvents.newParseEvent());
+  }
+
+  // null for auto, the default: recognize gzip or zlib by the first bytes.
+  protected ContentEncoding.Type getContentEncoding(MessageContext msgCtxt) {
+    String value = getSimpleOptionalProperty("content-encoding", msgCtxt);
+    if (value == null || value.trim().equalsIgnoreCase("auto")) return null;
+    ContentEncoding.Type type = ContentEncoding.fromName(value);
+    if (type == null) {
+      msgCtxt.setVariable(varName("warning"), "unrecognized content-encoding");
+    }
+    return type;
+  }
+
+  // Decompresses the source as the parser reads it, so the expanded document
+  // is never held as text. The bound of a gate applies to the expanded bytes.
+  private InputStream decodedStream(InputStream in, MessageContext msgCtxt) throws IOException {
+    ContentEncoding.Type type = getContentEncoding(msgCtxt);
+    if (type == null) {
+      PushbackInputStream peekable = ContentEncoding.peekable(in);
+      type = ContentEncoding.detect(peekable);
+      in = peekable;
+    }
+    msgCtxt.setVariable(varName("input_encoding"), type.name().toLowerCase());
+    return ContentEncoding.decode(in, type);
+  }
+
+  protected Batch.Mode getBatchMode(MessageContext msgCtxt) {
+    String mode = getSimpleOptionalProperty("batch", msgCtxt);
+    if (mode == null) return Batch.Mode.NONE;
+    mode = mode.trim().toUpperCase();
+    if (mode.equals("CONTAINER")) return Batch.Mode.CONTAINER;
+    if (mode.equals("LINES")) return Batch.Mode.LINES;
+    msgCtxt.setVariable(varName("warning"), "unrecognized batch");
+    return Batch.Mode.NONE;
+  }
+
+  // Enters the bulkhead, waiting at most max-concurrent-wait, when either
+  // limit is set; otherwise returns null. Without a key, only the overall
+  // limit applies. The caller releases the permit when the crypto is done.
+  // Either half of a key pair gets the same fingerprint, and so the same lane.
+  protected Bulkhead.Permit enterBulkhead(MessageContext msgCtxt, Key key)
+      throws InterruptedException {
+    return enterBulkhead(
+        msgCtxt, (key != null) ? Collections.singletonList(key) : Collections.<Key>emptyList());
+  }
+
+  // With several keys, as for multiple signers, a place under the per-key
+  // limit of each of them.
+  protected Bulkhead.Permit enterBulkhead(MessageContext msgCtxt, List<? extends Key> keys)
+      throws InterruptedException {
+    int perKeyLimit =
+        !keys.isEmpty() ? getIntProperty("max-concurrent-per-key", msgCtxt, 0) : 0;
+    int overallLimit = getIntProperty("max-concurrent", msgCtxt, 0);
+    if (perKeyLimit <= 0 && overallLimit <= 0) return null;
+    long waitMillis =
+        getIntProperty(
+            "max-concurrent-wait", msgCtxt, (int) DEFAULT_MAX_CONCURRENT_WAIT_MILLIS);
+    List<String> fingerprints = new ArrayList<String>();
+    for (Key key : keys) {
+      String fingerprint = XmlDsigEvents.fingerprint(key);
+      fingerprints.add(fingerprint.equals("") ? "unknown" : fingerprint);
+    }
+    try {
+      Bulkhead.Permit permit =
+          Bulkhead.getInstance().acquire(fingerprints, perKeyLimit, overallLimit, waitMillis);
+      msgCtxt.setVariable(
+          varName("bulkhead_wait_ms"), TimeUnit.NANOSECONDS.toMillis(permit.waitNanos));
+      msgCtxt.setVariable(varName("bulkhead_queue_depth"), permit.queueDepth);
+      return permit;
+    } catch (Bulkhead.Rejected rejected) {
+      msgCtxt.setVariable(varName("bulkhead_rejected"), true);
+      throw rejected;
+    }
+  }
+
+  private int getIntProperty(String propName, MessageContext msgCtxt, int defaultValue) {
+    String value = getSimpleOptionalProperty(propName, msgCtxt);
+    if (value == null) return defaultValue;
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException nfe) {
+      throw new IllegalStateException("invalid " + propName);
+    }
+  }
+
+  // The documents of a batch. With a gate, the size limit applies to the
+  // source as a whole.
+  protected List<Object> getBatchItems(MessageContext msgCtxt, Batch.Mode mode, PolicyGate gate)
+      throws Exception {
+    if (mode == Batch.Mode.CONTAINER) {
+      return Batch.fromContainer(getDocument(msgCtxt, gate));
+    }
+    String sourceText = getSourceText(msgCtxt);
+    if (sourceText == null) {
+      throw new IllegalStateException("batch lines requires a String source");
+    }
+    if (gate != null) {
+      gate.checkSize(sourceText);
+    }
+    return Batch.fromLines(sourceText);
+  }
+
+  // Returns the unparsed source text, or null if the source holds a Document.
+  protected String getSourceText(MessageContext msgCtxt) throws Exception {
     String source = getSimpleOptionalProperty("source", msgCtxt);
     if (source == null) {
-      return XmlUtils.parseXml(msgCtxt.getMessage().getContentAsStream());
+      return msgCtxt.getMessage().getContent();
     }
-    String text = (String) msgCtxt.getVariable(source);
-    if (text == null) {
+    Object sourceObject = msgCtxt.getVariable(source);
+    if (sourceObject == null) {
       throw new IllegalStateException("source variable resolves to null");
     }
-    return XmlUtils.parseXml(text);
+    if (sourceObject instanceof String) {
+      return (String) sourceObject;
+    }
+    return null;
+  }
+
+  // The content covered by a detached signature, read from the variable named
+  // by detached-content. The variable may hold an InputStream, a byte array, or
+  // a String (encoded as UTF-8). When not required and not specified, the
+  // message content stream is used.
+  protected InputStream getDetachedContent(MessageContext msgCtxt, boolean required)
+      throws Exception {
+    String variableName =
+        required
+            ? getSimpleRequiredProperty("detached-content", msgCtxt)
+            : getSimpleOptionalProperty("detached-content", msgCtxt);
+    if (variableName == null) {
+      return msgCtxt.getMessage().getContentAsStream();
+    }
+    Object content = msgCtxt.getVariable(variableName);
+    if (content == null) {
+      throw new IllegalStateException("detached-content variable resolves to null");
+    }
+    if (content instanceof InputStream) {
+      return (InputStream) content;
+    }
+    if (content instanceof byte[]) {
+      return new ByteArrayInputStream((byte[]) content);
+    }
+    if (content instanceof String) {
+      return new ByteArrayInputStream(((String) content).getBytes(StandardCharsets.UTF_8));
+    }
+    throw new IllegalStateException("detached-content variable has an unsupported type");
+  }
+
+  protected long getSpillThreshold(MessageContext msgCtxt) {
+    String value = getSimpleOptionalProperty("spill-threshold", msgCtxt);
+    if (value == null) return -1L;
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException nfe) {
+      msgCtxt.setVariable(varName("warning"), "invalid spill-threshold");
+      return -1L;
+    }
   }
 
   protected boolean getDebug() {
@@ -118,6 +344,9 @@ public abstract class XmlDsigCalloutBase {
   // eg, {apiproxy.name}, then "resolve" the value by de-referencing
   // the context variables whose names appear between curlies.
   private String resolvePropertyValue(String spec, MessageContext msgCtxt) {
+    if (spec.indexOf('{') < 0) {
+      return spec; // nothing to resolve
+    }
     Matcher matcher = variableReferencePattern.matcher(spec);
     StringBuffer sb = new StringBuffer();
     while (matcher.find()) {
@@ -136,7 +365,12 @@ public abstract class XmlDsigCalloutBase {
   protected void setExceptionVariables(Exception exc1, MessageContext msgCtxt) {
     String error = exc1.toString();
     msgCtxt.setVariable(varName("exception"), error);
-    System.out.printf("Exception: %s\n", error);
+    // never blocks; the log line may be dropped under a flood of errors
+    ErrorReporter reporter = ErrorReporter.getInstance();
+    msgCtxt.setVariable(varName("error_count"), reporter.report(exc1, error));
+    if (getDebug()) {
+      msgCtxt.setVariable(varName("error_summary"), reporter.getSummary());
+    }
     int ch = error.lastIndexOf(':');
     if (ch >= 0) {
       msgCtxt.setVariable(varName("error"), error.substring(ch + 2).trim());
@@ -145,65 +379,94 @@ public abstract class XmlDsigCalloutBase {
     }
   }
 
-  enum IssuerNameStyle {
-    NOT_SPECIFIED,
-    SHORT,
-    SUBJECT_DN
-  }
-
-  protected IssuerNameStyle getIssuerNameStyle(MessageContext msgCtxt) {
+  protected Signer.IssuerNameStyle getIssuerNameStyle(MessageContext msgCtxt) {
     String kitString = getSimpleOptionalProperty("issuer-name-style", msgCtxt);
-    if (kitString == null) return IssuerNameStyle.SHORT;
+    if (kitString == null) return Signer.IssuerNameStyle.SHORT;
     kitString = kitString.trim().toUpperCase();
-    if (kitString.equals("SHORT")) return IssuerNameStyle.SHORT;
-    if (kitString.equals("SUBJECT_DN")) return IssuerNameStyle.SUBJECT_DN;
+    if (kitString.equals("SHORT")) return Signer.IssuerNameStyle.SHORT;
+    if (kitString.equals("SUBJECT_DN")) return Signer.IssuerNameStyle.SUBJECT_DN;
     msgCtxt.setVariable(varName("warning"), "unrecognized issuer-name-style");
-    return IssuerNameStyle.SHORT;
+    return Signer.IssuerNameStyle.SHORT;
   }
 
-
-  protected static String reformIndents(String s) {
-    return s.trim().replaceAll("([\\r|\\n|\\r\\n] *)", "\n");
+  // The checks of trust-anchors and crl-files, or null when neither is set.
+  protected CertificatePolicy getCertificatePolicy(MessageContext msgCtxt) {
+    String trustAnchorsPem = getSimpleOptionalProperty("trust-anchors", msgCtxt);
+    String crlFiles = getSimpleOptionalProperty("crl-files", msgCtxt);
+    if (trustAnchorsPem == null && crlFiles == null) return null;
+    return new CertificatePolicy(
+        trustAnchorsPem,
+        (trustAnchorsPem != null) ? getCertificateCacheTtl(msgCtxt) : 0L,
+        crlFiles,
+        (crlFiles != null) ? getCrlRefreshInterval(msgCtxt) : 0L);
   }
 
-  protected static String getCommonName(X500Principal principal)
-    throws InvalidNameException {
-    LdapName ldapDN = new LdapName(principal.getName());
-    String cn = null;
-    for (Rdn rdn : ldapDN.getRdns()) {
-      // System.out.println(rdn.getType() + " -> " + rdn.getValue());
-      if (rdn.getType().equals("CN")) {
-        cn = rdn.getValue().toString();
-      }
+  private long getCrlRefreshInterval(MessageContext msgCtxt) {
+    String value = getSimpleOptionalProperty("crl-refresh-interval", msgCtxt);
+    if (value == null) return DEFAULT_CRL_REFRESH_INTERVAL_SECONDS;
+    try {
+      long interval = Long.parseLong(value);
+      if (interval > 0) return interval;
+    } catch (NumberFormatException nfe) {
+      // fall through
     }
-    return cn;
+    msgCtxt.setVariable(varName("warning"), "invalid crl-refresh-interval");
+    return DEFAULT_CRL_REFRESH_INTERVAL_SECONDS;
   }
 
-  protected static Certificate certificateFromPEM(String certificateString)
-      throws KeyException {
+  private long getCertificateCacheTtl(MessageContext msgCtxt) {
+    String value = getSimpleOptionalProperty("certificate-cache-ttl", msgCtxt);
+    if (value == null) return DEFAULT_CERTIFICATE_CACHE_TTL_SECONDS;
     try {
-      CertificateFactory certFactory = CertificateFactory.getInstance("X.509", "BC");
-      certificateString = reformIndents(certificateString);
-      Certificate certificate =
-        certFactory.generateCertificate(
-              new ByteArrayInputStream(certificateString.getBytes(StandardCharsets.UTF_8)));
-      return certificate;
-    } catch (Exception ex) {
-      throw new KeyException("cannot instantiate certificate", ex);
+      return Long.parseLong(value);
+    } catch (NumberFormatException nfe) {
+      msgCtxt.setVariable(varName("warning"), "invalid certificate-cache-ttl");
+      return DEFAULT_CERTIFICATE_CACHE_TTL_SECONDS;
     }
   }
 
-  protected static String getThumbprintBase64(X509Certificate certificate)
-      throws NoSuchAlgorithmException, CertificateEncodingException {
-    return Base64.getEncoder()
-        .encodeToString(MessageDigest.getInstance("SHA-1").digest(certificate.getEncoded()));
+  interface EngineFactory {
+    XmlDsigEngine newEngine() throws Exception;
   }
 
-  protected static String getThumbprintHex(X509Certificate certificate)
-      throws NoSuchAlgorithmException, CertificateEncodingException {
-    return DatatypeConverter.printHexBinary(
-            MessageDigest.getInstance("SHA-1").digest(certificate.getEncoded()))
-        .toLowerCase();
+  // Returns the engine for the configuration that the named properties
+  // resolve to, building it with the factory the first time. The engine
+  // keeps the parsed keys and certificates, so that they are read once per
+  // configuration rather than once per message.
+  protected XmlDsigEngine getEngine(
+      MessageContext msgCtxt, String[] propertyNames, EngineFactory factory) throws Exception {
+    String key = getConfigurationKey(msgCtxt, propertyNames);
+    XmlDsigEngine engine = engines.get(key);
+    if (engine == null) {
+      engine = factory.newEngine();
+      engines.put(key, engine);
+    }
+    return engine;
+  }
+
+  // A digest of the resolved values rather than the values themselves, so
+  // that the cache does not hold keys and passwords as text.
+  private String getConfigurationKey(MessageContext msgCtxt, String[] propertyNames)
+      throws NoSuchAlgorithmException {
+    MessageDigest digest = MessageDigest.getInstance("SHA-256");
+    digest.update(getClass().getName().getBytes(StandardCharsets.UTF_8));
+    for (String propertyName : propertyNames) {
+      String value = getSimpleOptionalProperty(propertyName, msgCtxt);
+      digest.update((byte) 0);
+      digest.update(propertyName.getBytes(StandardCharsets.UTF_8));
+      if (value != null) {
+        digest.update((byte) '=');
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+      }
+    }
+    return Keys.toHex(digest.digest());
+  }
+
+  // Copies what the engine reports about a message into context variables.
+  protected static void setDetailVariables(Map<String, Object> details, MessageContext msgCtxt) {
+    for (Map.Entry<String, Object> entry : details.entrySet()) {
+      msgCtxt.setVariable(varName(entry.getKey()), entry.getValue());
+    }
   }
 
   protected static String getStackTraceAsString(Throwable t) {
@@ -0,0 +1,407 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.edgecallouts.xmldsig;
+
+import com.google.apigee.util.XmlUtils;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+import javax.naming.InvalidNameException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Signs and validates XML documents without an Apigee message context. The
+ * keys, algorithms and options are fixed when the engine is built, and kept
+ * for its lifetime; an engine is immutable and may be shared by any number of
+ * threads. The Sign and Validate callouts resolve their properties into an
+ * engine, which they keep for as long as those properties resolve the same,
+ * and delegate to it for each message.
+ *
+ * <pre>
+ * XmlDsigEngine engine =
+ *     XmlDsigEngine.newBuilder()
+ *         .withPrivateKeyPem(pem, null)
+ *         .withSigningMethod("rsa-sha256")
+ *         .withDigestMethod("sha256")
+ *         .build();
+ * engine.sign(in, out);
+ * </pre>
+ */
+public final class XmlDsigEngine {
+  // Virtual threads, on a JVM that has them (Java 21 and later).
+  private static final Executor virtualThreads = newVirtualThreadExecutor();
+
+  private final Signer signer; // null to validate only
+  private final Verifier verifier; // null to sign only
+
+  private XmlDsigEngine(Signer signer, Verifier verifier) {
+    this.signer = signer;
+    this.verifier = verifier;
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /** Signs the document read from in, and writes the signed document to out. */
+  public void sign(InputStream in, OutputStream out) throws Exception {
+    Document doc = XmlUtils.parseXml(in);
+    sign(doc);
+    Signer.serialize(doc, out);
+    out.flush();
+  }
+
+  /** Returns true if the signature in the document read from in is valid. */
+  public boolean validate(InputStream in) throws Exception {
+    PolicyGate gate = getVerifier().getGate();
+    return validate((gate != null) ? gate.parse(in, 0) : XmlUtils.parseXml(in));
+  }
+
+  /** Signs on the given executor. */
+  public CompletableFuture<Void> signAsync(
+      final InputStream in, final OutputStream out, Executor executor) {
+    return CompletableFuture.supplyAsync(
+        new Supplier<Void>() {
+          public Void get() {
+            try {
+              sign(in, out);
+              return null;
+            } catch (Exception e) {
+              throw asCompletionException(e);
+            }
+          }
+        },
+        executor);
+  }
+
+  /** Signs on a virtual thread, or where the JVM has none, on the common pool. */
+  public CompletableFuture<Void> signAsync(InputStream in, OutputStream out) {
+    return signAsync(in, out, defaultExecutor());
+  }
+
+  /** Validates on the given executor. */
+  public CompletableFuture<Boolean> validateAsync(final InputStream in, Executor executor) {
+    return CompletableFuture.supplyAsync(
+        new Supplier<Boolean>() {
+          public Boolean get() {
+            try {
+              return validate(in);
+            } catch (Exception e) {
+              throw asCompletionException(e);
+            }
+          }
+        },
+        executor);
+  }
+
+  /** Validates on a virtual thread, or where the JVM has none, on the common pool. */
+  public CompletableFuture<Boolean> validateAsync(InputStream in) {
+    return validateAsync(in, defaultExecutor());
+  }
+
+  Signer getSigner() {
+    if (signer == null) {
+      throw new IllegalStateException("engine has no private key");
+    }
+    return signer;
+  }
+
+  Verifier getVerifier() {
+    if (verifier == null) {
+      throw new IllegalStateException("engine has no public key");
+    }
+    return verifier;
+  }
+
+  // Signs the document in place, and returns the Signature elements added.
+  // The certificate, if any, is checked by the caller; a batch checks it
+  // once for all of its documents.
+  List<Element> sign(Document doc) throws Exception {
+    return getSigner().sign(doc, null);
+  }
+
+  // The keys that sign, one for each signature; empty to validate only.
+  List<PrivateKey> getPrivateKeys() {
+    return (signer == null)
+        ? Collections.<PrivateKey>emptyList()
+        : signer.getConfiguration().privatekeys;
+  }
+
+  boolean validate(Document doc) throws Exception {
+    Verifier verifier = getVerifier();
+    Element signatureElement = verifier.findSignature(doc);
+    Map<String, Object> details = new HashMap<String, Object>();
+    PublicKey key = verifier.selectKey(signatureElement, details);
+    return key != null && verifier.verify(signatureElement, key, null, details);
+  }
+
+  private static CompletionException asCompletionException(Exception e) {
+    return (e instanceof CompletionException) ? (CompletionException) e : new CompletionException(e);
+  }
+
+  private static Executor defaultExecutor() {
+    return (virtualThreads != null) ? virtualThreads : ForkJoinPool.commonPool();
+  }
+
+  private static Executor newVirtualThreadExecutor() {
+    try {
+      return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  /**
+   * Collects the configuration of an engine. The defaults are those of the
+   * callouts: an enveloped signature with rsa-sha1 and sha1, and an
+   * RSAKeyValue in the KeyInfo.
+   */
+  public static final class Builder {
+    private List<PrivateKey> privateKeys;
+    private X509Certificate certificate;
+    private List<X509Certificate> intermediates = Collections.<X509Certificate>emptyList();
+    private String signingMethod = "rsa-sha1";
+    private String digestMethod = "sha1";
+    private Signer.KeyIdentifierType keyIdentifierType = Signer.KeyIdentifierType.RSA_KEY_VALUE;
+    private Signer.IssuerNameStyle issuerNameStyle = Signer.IssuerNameStyle.SHORT;
+    private Signer.SignatureType signatureType = Signer.SignatureType.ENVELOPED;
+    private String detachedUri;
+    private int expiresInSeconds = 300;
+    private CertificatePolicy certificatePolicy;
+    private PublicKey publicKey;
+    private KeyRing keyRing;
+    private int keyRingMaxAttempts;
+    private PolicyGate gate;
+    private String signatureLocation;
+    private String signatureLocationNamespaces;
+    private boolean failFast;
+
+    private Builder() {}
+
+    public Builder withPrivateKey(PrivateKey key) {
+      this.privateKeys = Collections.singletonList(key);
+      return this;
+    }
+
+    /**
+     * Signs with each of the keys, as with the private-keys property. The list
+     * is copied, so later changes to it do not reach the engine.
+     */
+    public Builder withPrivateKeys(List<PrivateKey> keys) {
+      this.privateKeys = Collections.unmodifiableList(new ArrayList<PrivateKey>(keys));
+      return this;
+    }
+
+    /** One or more PEM-encoded private keys; the password may be null. */
+    public Builder withPrivateKeyPem(String pem, String password) throws Exception {
+      this.privateKeys = Keys.readPrivateKeys(pem, password);
+      return this;
+    }
+
+    public Builder withCertificate(X509Certificate certificate) {
+      this.certificate = certificate;
+      return this;
+    }
+
+    // As the certificate property: the signer's certificate, then any
+    // intermediates, which are used only to check the chain.
+    Builder withCertificates(List<X509Certificate> certificates) {
+      this.certificate = certificates.get(0);
+      this.intermediates = certificates.subList(1, certificates.size());
+      return this;
+    }
+
+    /** A signing-method name, such as rsa-sha256. */
+    public Builder withSigningMethod(String signingMethod) {
+      this.signingMethod = signingMethod;
+      return this;
+    }
+
+    /** A digest-method name, such as sha256. */
+    public Builder withDigestMethod(String digestMethod) {
+      this.digestMethod = digestMethod;
+      return this;
+    }
+
+    /** As the key-identifier-type property, such as x509_cert_direct. */
+    public Builder withKeyIdentifierType(String keyIdentifierType) {
+      Signer.KeyIdentifierType kit =
+          Signer.KeyIdentifierType.fromString(keyIdentifierType.trim().toUpperCase());
+      if (kit == Signer.KeyIdentifierType.NOT_SPECIFIED) {
+        throw new IllegalStateException("unrecognized key-identifier-type");
+      }
+      return withKeyIdentifierType(kit);
+    }
+
+    Builder withKeyIdentifierType(Signer.KeyIdentifierType keyIdentifierType) {
+      this.keyIdentifierType = keyIdentifierType;
+      return this;
+    }
+
+    /** short or subject_dn. */
+    public Builder withIssuerNameStyle(String issuerNameStyle) {
+      String ins = issuerNameStyle.trim().toUpperCase();
+      if (!ins.equals("SHORT") && !ins.equals("SUBJECT_DN")) {
+        throw new IllegalStateException("unrecognized issuer-name-style");
+      }
+      return withIssuerNameStyle(Signer.IssuerNameStyle.valueOf(ins));
+    }
+
+    Builder withIssuerNameStyle(Signer.IssuerNameStyle issuerNameStyle) {
+      this.issuerNameStyle = issuerNameStyle;
+      return this;
+    }
+
+    /** enveloped or ws-security. */
+    public Builder withSignatureType(String signatureType) {
+      String t = signatureType.trim().toUpperCase();
+      if (t.equals("ENVELOPED")) {
+        return withSignatureType(Signer.SignatureType.ENVELOPED);
+      }
+      if (t.equals("WS-SECURITY")) {
+        return withSignatureType(Signer.SignatureType.WS_SECURITY);
+      }
+      throw new IllegalStateException("unsupported signature-type");
+    }
+
+    Builder withSignatureType(Signer.SignatureType signatureType) {
+      this.signatureType = signatureType;
+      return this;
+    }
+
+    // With a detached signature, the URI of the Reference to the content.
+    Builder withDetachedUri(String detachedUri) {
+      this.detachedUri = detachedUri;
+      return this;
+    }
+
+    /** With ws-security, the lifetime of the Timestamp. */
+    public Builder withExpiry(int expiresInSeconds) {
+      this.expiresInSeconds = expiresInSeconds;
+      return this;
+    }
+
+    // The checks applied to the signer's certificate when signing, or to the
+    // certificate in the KeyInfo when validating.
+    Builder withCertificatePolicy(CertificatePolicy certificatePolicy) {
+      this.certificatePolicy = certificatePolicy;
+      return this;
+    }
+
+    public Builder withPublicKey(PublicKey publicKey) {
+      this.publicKey = publicKey;
+      return this;
+    }
+
+    public Builder withPublicKeyPem(String pem) throws Exception {
+      this.publicKey = Keys.readPublicKey(pem.trim());
+      return this;
+    }
+
+    /** As the public-keys property: PEM-encoded keys, or a JWKS. */
+    public Builder withPublicKeys(String spec) throws Exception {
+      this.keyRing = KeyRing.fromString(spec);
+      return this;
+    }
+
+    // As the key-ring-max-attempts property.
+    Builder withKeyRingMaxAttempts(int keyRingMaxAttempts) {
+      this.keyRingMaxAttempts = keyRingMaxAttempts;
+      return this;
+    }
+
+    // The limits applied to each document before it is validated.
+    Builder withPolicyGate(PolicyGate gate) {
+      this.gate = gate;
+      return this;
+    }
+
+    /** As the signature-location and signature-location-namespaces properties. */
+    public Builder withSignatureLocation(String xpath, String namespaceDeclarations) {
+      this.signatureLocation = xpath;
+      this.signatureLocationNamespaces = namespaceDeclarations;
+      return this;
+    }
+
+    // As the fail-fast property.
+    Builder withFailFast(boolean failFast) {
+      this.failFast = failFast;
+      return this;
+    }
+
+    public XmlDsigEngine build() {
+      Signer signer = null;
+      if (privateKeys != null) {
+        AlgorithmRegistry.SignatureAlgorithm sm =
+            AlgorithmRegistry.getSignatureAlgorithm(signingMethod.trim());
+        if (sm == null) {
+          throw new IllegalStateException("unsupported signing-method");
+        }
+        AlgorithmRegistry.DigestAlgorithm dm =
+            AlgorithmRegistry.getDigestAlgorithm(digestMethod.trim());
+        if (dm == null) {
+          throw new IllegalStateException("unsupported digest-method");
+        }
+        Signer.SignConfiguration signConfiguration =
+            new Signer.SignConfiguration()
+                .withKeys(privateKeys)
+                .withCertificate(certificate)
+                .withKeyIdentifierType(keyIdentifierType)
+                .withIssuerNameStyle(issuerNameStyle)
+                .withSigningMethod(sm)
+                .withDigestMethod(dm)
+                .withDetachedUri(detachedUri)
+                .withExpiry(expiresInSeconds);
+        try {
+          signer = new Signer(signatureType, signConfiguration, intermediates, certificatePolicy);
+        } catch (GeneralSecurityException | InvalidNameException e) {
+          throw new IllegalStateException("cannot read the certificate", e);
+        }
+      }
+      Verifier verifier = null;
+      if (publicKey != null
+          || keyRing != null
+          || (privateKeys == null && certificatePolicy != null)) {
+        verifier =
+            new Verifier(
+                publicKey,
+                keyRing,
+                keyRingMaxAttempts,
+                certificatePolicy,
+                gate,
+                signatureLocation,
+                signatureLocationNamespaces,
+                failFast);
+      }
+      return new XmlDsigEngine(signer, verifier);
+    }
+  }
+}
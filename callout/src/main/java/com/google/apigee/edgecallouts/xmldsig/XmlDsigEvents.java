@@ -0,0 +1,254 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.edgecallouts.xmldsig;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.RSAKey;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.util.List;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import org.bouncycastle.jcajce.provider.asymmetric.util.EC5Util;
+import org.bouncycastle.math.ec.ECCurve;
+
+/**
+ * Java Flight Recorder events for the callout. Callers create an event only
+ * when {@link #SUPPORTED} is true, so the callout still runs on a JVM without
+ * jdk.jfr, and fill in the fields only when {@code shouldCommit()} returns
+ * true, so that nothing beyond the begin and end timestamps is computed while
+ * no recording is active. See xmldsig.jfc for sample settings.
+ */
+final class XmlDsigEvents {
+  static final String ENGINE = "jsr105-dom";
+  static final boolean SUPPORTED = isSupported();
+
+  private XmlDsigEvents() {}
+
+  private static boolean isSupported() {
+    try {
+      Class.forName("jdk.jfr.Event");
+      return true;
+    } catch (Throwable t) {
+      return false;
+    }
+  }
+
+  // A short, stable identifier for a key pair: the first 16 hex digits of
+  // the SHA-256 of the RSA modulus, or of the encoded public key. For an EC
+  // private key, the public key is derived from it, so that the private and
+  // public halves of a pair have the same fingerprint. Nothing else is
+  // derived from private key material.
+  static String fingerprint(Key key) {
+    try {
+      byte[] material;
+      if (key instanceof RSAKey) {
+        material = ((RSAKey) key).getModulus().toByteArray();
+      } else if (key instanceof PublicKey) {
+        material = key.getEncoded();
+      } else if (key instanceof ECPrivateKey) {
+        material = toPublicKey((ECPrivateKey) key).getEncoded();
+      } else {
+        return "";
+      }
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(material);
+      return Keys.toHex(digest).substring(0, 16);
+    } catch (Exception e) {
+      return "";
+    }
+  }
+
+  // The public point is the generator multiplied by the private scalar.
+  private static PublicKey toPublicKey(ECPrivateKey key) throws GeneralSecurityException {
+    ECParameterSpec params = key.getParams();
+    ECCurve curve = EC5Util.convertCurve(params.getCurve());
+    org.bouncycastle.math.ec.ECPoint q =
+        EC5Util.convertPoint(curve, params.getGenerator(), false).multiply(key.getS()).normalize();
+    ECPoint w =
+        new ECPoint(q.getAffineXCoord().toBigInteger(), q.getAffineYCoord().toBigInteger());
+    return KeyFactory.getInstance("EC").generatePublic(new ECPublicKeySpec(w, params));
+  }
+
+  static KeyLoadEvent newKeyLoadEvent() {
+    return SUPPORTED ? new KeyLoadEvent() : null;
+  }
+
+  static ParseEvent newParseEvent() {
+    return SUPPORTED ? new ParseEvent() : null;
+  }
+
+  /**
+   * An operation timed by an event. {@link #in} begins the event, runs the
+   * operation, and ends the event; only if a recording wants the event does
+   * it call {@link #describe} to fill in the fields, and commit it. With a
+   * null event, as on a JVM without jdk.jfr, it just runs the operation.
+   */
+  abstract static class Timed<E extends Event, T> {
+    abstract T run() throws Exception;
+
+    /** Fills in the event; the result is null if the operation threw. */
+    abstract void describe(E event, T result);
+
+    final T in(E event) throws Exception {
+      if (event == null) {
+        return run();
+      }
+      event.begin();
+      T result = null;
+      try {
+        result = run();
+        return result;
+      } finally {
+        event.end();
+        if (event.shouldCommit()) {
+          describe(event, result);
+          event.commit();
+        }
+      }
+    }
+  }
+
+  // The fields of a KeyLoad event for the keys that were loaded, or for none.
+  static void describeKeys(KeyLoadEvent event, String source, List<? extends Key> keys) {
+    event.source = source;
+    event.outcome = (keys != null) ? "success" : "error";
+    if (keys != null && keys.size() > 0) {
+      StringBuilder fingerprints = new StringBuilder();
+      for (Key key : keys) {
+        if (fingerprints.length() > 0) fingerprints.append(',');
+        fingerprints.append(fingerprint(key));
+      }
+      event.algorithm = keys.get(0).getAlgorithm();
+      event.keyFingerprint = fingerprints.toString();
+    }
+  }
+
+  @Name("com.google.apigee.xmldsig.Sign")
+  @Label("XMLDSig Sign")
+  @Category({"Apigee", "XMLDSig"})
+  @StackTrace(false)
+  static final class SignEvent extends Event {
+    @Label("Document Size")
+    @Description("Length of the signed output, in characters, or in bytes when compressed")
+    long documentSize = -1;
+
+    @Label("Algorithm")
+    String algorithm;
+
+    @Label("Digest")
+    String digest;
+
+    @Label("Key Fingerprint")
+    String keyFingerprint;
+
+    @Label("Engine")
+    String engine = ENGINE;
+
+    @Label("Signature Type")
+    String signatureType;
+
+    @Label("Certificate Chain Cache Hit")
+    boolean cacheHit;
+
+    @Label("Outcome")
+    String outcome;
+  }
+
+  @Name("com.google.apigee.xmldsig.Validate")
+  @Label("XMLDSig Validate")
+  @Category({"Apigee", "XMLDSig"})
+  @StackTrace(false)
+  static final class ValidateEvent extends Event {
+    @Label("Document Size")
+    @Description("Length of the source, in characters; -1 if not known")
+    long documentSize = -1;
+
+    @Label("Algorithm")
+    String algorithm;
+
+    @Label("Key Fingerprint")
+    String keyFingerprint;
+
+    @Label("Engine")
+    String engine = ENGINE;
+
+    @Label("Certificate Chain Cache Hit")
+    boolean cacheHit;
+
+    @Label("Outcome")
+    @Description("valid, invalid, or error")
+    String outcome;
+  }
+
+  @Name("com.google.apigee.xmldsig.KeyLoad")
+  @Label("XMLDSig Key Load")
+  @Category({"Apigee", "XMLDSig"})
+  @StackTrace(false)
+  static final class KeyLoadEvent extends Event {
+    @Label("Source")
+    @Description("private-key, private-keys, public-key, public-keys, or certificate")
+    String source;
+
+    @Label("Key Algorithm")
+    String algorithm;
+
+    @Label("Key Fingerprint")
+    String keyFingerprint;
+
+    @Label("Outcome")
+    String outcome;
+  }
+
+  @Name("com.google.apigee.xmldsig.Parse")
+  @Label("XMLDSig Parse")
+  @Category({"Apigee", "XMLDSig"})
+  @StackTrace(false)
+  static final class ParseEvent extends Event {
+    @Label("Document Size")
+    @Description("Length of the source, in characters; -1 for a stream")
+    long documentSize = -1;
+
+    @Label("Source")
+    @Description("string or stream")
+    String source;
+
+    @Label("Outcome")
+    String outcome;
+  }
+
+  @Name("com.google.apigee.xmldsig.Serialize")
+  @Label("XMLDSig Serialize")
+  @Category({"Apigee", "XMLDSig"})
+  @StackTrace(false)
+  static final class SerializeEvent extends Event {
+    @Label("Document Size")
+    @Description("Length of the output, in characters")
+    long documentSize = -1;
+
+    @Label("Output Mode")
+    String outputMode;
+  }
+}
@@ -0,0 +1,87 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStream that fails, with the given message, as soon as more than
+ * a fixed number of bytes has been read from it, so that an oversized input
+ * is rejected without being read in full.
+ */
+public class BoundedInputStream extends FilterInputStream {
+    private final long limit;
+    private final String message;
+    private long count;
+
+    /** Thrown on the read that passes the limit. */
+    public static class LimitExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final long count;
+
+        public LimitExceededException(String message, long count) {
+            super(message);
+            this.count = count;
+        }
+
+        /** The number of bytes read when the limit was passed. */
+        public long getCount() {
+            return count;
+        }
+    }
+
+    public BoundedInputStream(InputStream in, long limit, String message) {
+        super(in);
+        this.limit = limit;
+        this.message = message;
+    }
+
+    private void add(long n) throws IOException {
+        if (n > 0) {
+            count += n;
+            if (count > limit) {
+                throw new LimitExceededException(message, count);
+            }
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) add(1);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        add(n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        add(skipped);
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
@@ -0,0 +1,132 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The HTTP content codings for compressed payloads: streams that decompress
+ * as they are read, or compress as they are written, so a payload need never
+ * be held in full in its expanded form. As in HTTP, deflate means the zlib
+ * format; raw deflate data, which some clients send instead, is also read.
+ */
+public final class ContentEncoding {
+    private static final int BUFFER_SIZE = 8192;
+
+    public enum Type {
+        IDENTITY,
+        GZIP,
+        DEFLATE
+    }
+
+    private ContentEncoding() {}
+
+    /** Returns the type for an HTTP Content-Encoding value, or null if not recognized. */
+    public static Type fromName(String name) {
+        name = name.trim().toLowerCase();
+        if (name.equals("gzip") || name.equals("x-gzip")) return Type.GZIP;
+        if (name.equals("deflate")) return Type.DEFLATE;
+        if (name.equals("identity")) return Type.IDENTITY;
+        return null;
+    }
+
+    /**
+     * Recognizes gzip and zlib data by their first two bytes, which are
+     * pushed back. An XML document can begin with neither.
+     */
+    public static Type detect(PushbackInputStream in) throws IOException {
+        int b0 = in.read();
+        if (b0 < 0) {
+            return Type.IDENTITY;
+        }
+        int b1 = in.read();
+        if (b1 >= 0) {
+            in.unread(b1);
+        }
+        in.unread(b0);
+        if (b0 == 0x1f && b1 == 0x8b) return Type.GZIP;
+        if (b1 >= 0 && isZlibHeader(b0, b1)) return Type.DEFLATE;
+        return Type.IDENTITY;
+    }
+
+    // RFC 1950: compression method 8, and the header a multiple of 31.
+    private static boolean isZlibHeader(int cmf, int flg) {
+        return (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+    }
+
+    /** Wraps the stream so that it needs to be read only once for detect. */
+    public static PushbackInputStream peekable(InputStream in) {
+        return new PushbackInputStream(in, 2);
+    }
+
+    /** Returns a stream that decompresses the given one as it is read. */
+    public static InputStream decode(InputStream in, Type type) throws IOException {
+        switch (type) {
+            case GZIP:
+                return new GZIPInputStream(in, BUFFER_SIZE);
+            case DEFLATE:
+                PushbackInputStream pin = peekable(in);
+                int b0 = pin.read();
+                int b1 = (b0 >= 0) ? pin.read() : -1;
+                if (b1 >= 0) pin.unread(b1);
+                if (b0 >= 0) pin.unread(b0);
+                boolean zlib = b0 >= 0 && b1 >= 0 && isZlibHeader(b0, b1);
+                return new InflatingStream(pin, new Inflater(!zlib));
+            default:
+                return in;
+        }
+    }
+
+    /**
+     * Returns a stream that compresses onto the given one as it is written.
+     * Closing it finishes the compressed data and closes the given stream.
+     */
+    public static OutputStream encode(OutputStream out, Type type) throws IOException {
+        switch (type) {
+            case GZIP:
+                return new GZIPOutputStream(out, BUFFER_SIZE);
+            case DEFLATE:
+                return new DeflaterOutputStream(out);
+            default:
+                return out;
+        }
+    }
+
+    // Releases the native memory of its Inflater on close, which
+    // InflaterInputStream does only for an Inflater it created.
+    private static final class InflatingStream extends InflaterInputStream {
+        InflatingStream(InputStream in, Inflater inflater) {
+            super(in, inflater, BUFFER_SIZE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            }
+            finally {
+                inf.end();
+            }
+        }
+    }
+}
@@ -15,10 +15,18 @@
 package com.google.apigee.util;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
@@ -32,10 +40,15 @@ import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.EntityResolver;
 import org.w3c.dom.Document;
+import org.w3c.dom.Node;
 
 public class XmlUtils {
 
-    private static DocumentBuilder getBuilder() throws ParserConfigurationException {
+    /**
+     * Returns a new namespace-aware builder that does not load external DTDs
+     * or resolve entities. A builder is not thread-safe.
+     */
+    public static DocumentBuilder newBuilder() throws ParserConfigurationException {
         DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
         factory.setNamespaceAware(true);
         factory.setFeature("http://apache.org/xml/features/nonvalidating/load-dtd-grammar", false);
@@ -53,28 +66,114 @@ public class XmlUtils {
 
         return builder;
     }
+
+    public static Document newDocument() throws ParserConfigurationException {
+        return newBuilder().newDocument();
+    }
+
     public static Document parseXml(InputStream in)
         throws IOException, SAXException, ParserConfigurationException {
-        DocumentBuilder builder = getBuilder();
+        DocumentBuilder builder = newBuilder();
         InputStream bin = new BufferedInputStream(in);
         Document ret = builder.parse(new InputSource(bin));
         return ret;
     }
+
+    /**
+     * Parses the stream, spilling it to a temporary file when it is larger
+     * than spillThreshold bytes. The spilled file is memory-mapped and fed to
+     * the parser from the mapping, so the raw bytes of a large payload never
+     * occupy the heap. The file is removed before this method returns.  A
+     * threshold of zero or less disables spilling.
+     */
+    public static Document parseXml(InputStream in, long spillThreshold)
+        throws IOException, SAXException, ParserConfigurationException {
+        if (spillThreshold <= 0) {
+            return parseXml(in);
+        }
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        int n;
+        while ((n = in.read(chunk)) != -1) {
+            head.write(chunk, 0, n);
+            if (head.size() > spillThreshold) {
+                return parseSpilled(head, chunk, in);
+            }
+        }
+        return newBuilder().parse(new InputSource(new ByteArrayInputStream(head.toByteArray())));
+    }
+
+    private static Document parseSpilled(ByteArrayOutputStream head, byte[] chunk, InputStream in)
+        throws IOException, SAXException, ParserConfigurationException {
+        Path tempFile = Files.createTempFile("xmldsig-", ".xml");
+        try (FileChannel channel =
+             FileChannel.open(tempFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(head.toByteArray()));
+            int n;
+            while ((n = in.read(chunk)) != -1) {
+                ByteBuffer bb = ByteBuffer.wrap(chunk, 0, n);
+                while (bb.hasRemaining()) {
+                    channel.write(bb);
+                }
+            }
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalStateException("input exceeds the maximum mappable size");
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return newBuilder().parse(new InputSource(new ByteBufferInputStream(mapped)));
+        }
+        finally {
+            try {
+                Files.deleteIfExists(tempFile);
+            }
+            catch (IOException ioe) {
+                // eg, the mapping is still held on a platform that forbids deletion
+                tempFile.toFile().deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Parses the file from a memory mapping of it, so that its bytes are
+     * read by the parser from the page cache rather than copied to the heap.
+     */
+    public static Document parseXml(Path path)
+        throws IOException, SAXException, ParserConfigurationException {
+        return parseXml(path, newBuilder());
+    }
+
+    /**
+     * As {@link #parseXml(Path)}, with a builder from {@link #newBuilder},
+     * which a caller may keep and reuse on one thread.
+     */
+    public static Document parseXml(Path path, DocumentBuilder builder)
+        throws IOException, SAXException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalStateException("input exceeds the maximum mappable size");
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return builder.parse(new InputSource(new ByteBufferInputStream(mapped)));
+        }
+    }
+
     public static Document parseXml(String s)
         throws IOException, SAXException, ParserConfigurationException {
-        DocumentBuilder builder = getBuilder();
+        DocumentBuilder builder = newBuilder();
         InputSource is = new InputSource();
         is.setCharacterStream(new StringReader(s));
         Document ret = builder.parse(is);
         return ret;
     }
 
-    public static String toString(Document doc) throws TransformerException {
-        return XmlUtils.toString(doc, false);
+    public static String toString(Node node) throws TransformerException {
+        return XmlUtils.toString(node, false);
     }
 
-    public static String toString(Document doc, boolean pretty) throws TransformerException {
-        DOMSource domSource = new DOMSource(doc);
+    public static String toString(Node node, boolean pretty) throws TransformerException {
+        DOMSource domSource = new DOMSource(node);
         StringWriter writer = new StringWriter();
         StreamResult result = new StreamResult(writer);
         TransformerFactory tf = TransformerFactory.newInstance();
@@ -85,4 +184,39 @@ public class XmlUtils {
         transformer.transform(domSource, result);
         return writer.toString();
     }
+
+    /**
+     * Returns the index at which the end tag of the root element begins, or -1
+     * if the root element has no separate end tag. Only whitespace, comments
+     * and processing instructions may follow the root element, so this scans
+     * backwards from the end of the text and skips over those.
+     */
+    public static int indexOfRootEndTag(String xml, String rootTagName) {
+        int end = xml.length();
+        while (true) {
+            while (end > 0 && Character.isWhitespace(xml.charAt(end - 1))) {
+                end--;
+            }
+            if (xml.startsWith("-->", end - 3)) {
+                end = xml.lastIndexOf("<!--", end - 3);
+            }
+            else if (xml.startsWith("?>", end - 2)) {
+                end = xml.lastIndexOf("<?", end - 2);
+            }
+            else {
+                break;
+            }
+            if (end < 0) {
+                return -1;
+            }
+        }
+        if (end == 0 || xml.charAt(end - 1) != '>') {
+            return -1;
+        }
+        int start = xml.lastIndexOf("</", end - 1);
+        if (start < 0 || !xml.substring(start + 2, end - 1).trim().equals(rootTagName)) {
+            return -1;
+        }
+        return start;
+    }
 }
@@ -0,0 +1,202 @@
+package com.google.apigee.edgecallouts.test;
+
+import com.apigee.flow.execution.ExecutionContext;
+import com.apigee.flow.execution.ExecutionResult;
+import com.apigee.flow.message.Message;
+import com.apigee.flow.message.MessageContext;
+import com.google.apigee.edgecallouts.xmldsig.Sign;
+import com.google.apigee.edgecallouts.xmldsig.Validate;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import mockit.Mock;
+import mockit.MockUp;
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+// Measures the bytes allocated on the calling thread per execute() of Sign
+// and Validate, once the JVM is warm, and compares them to the budgets in
+// allocation-budgets.properties. Raise a budget only deliberately.
+public class TestAllocationBudget {
+
+    static {
+        java.security.Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
+    }
+
+    private static final int WARMUP_ITERATIONS = 300;
+    private static final int MEASURED_ITERATIONS = 50;
+
+    MessageContext msgCtxt;
+    ExecutionContext exeCtxt;
+    com.sun.management.ThreadMXBean threadBean;
+    Properties budgets;
+    String privateKeyPem;
+    String publicKeyPem;
+
+    @BeforeClass
+    public void beforeClass() throws Exception {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            throw new SkipException("thread allocation counters are not available");
+        }
+        threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threadBean.isThreadAllocatedMemorySupported()) {
+            throw new SkipException("thread allocation counters are not available");
+        }
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        budgets = new Properties();
+        try (InputStream in = getClass().getResourceAsStream("/allocation-budgets.properties")) {
+            budgets.load(in);
+        }
+
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(2048);
+        KeyPair keyPair = kpg.generateKeyPair();
+        privateKeyPem = toPem("PRIVATE KEY", keyPair.getPrivate().getEncoded());
+        publicKeyPem = toPem("PUBLIC KEY", keyPair.getPublic().getEncoded());
+    }
+
+    @BeforeMethod()
+    public void beforeMethod() {
+        msgCtxt = new MockUp<MessageContext>() {
+            private Map variables = new HashMap();
+
+            @Mock()
+            public <T> T getVariable(final String name){
+                return (T) variables.get(name);
+            }
+
+            @Mock()
+            public boolean setVariable(final String name, final Object value) {
+                variables.put(name, value);
+                return true;
+            }
+
+            @Mock()
+            public boolean removeVariable(final String name) {
+                variables.remove(name);
+                return true;
+            }
+
+            @Mock()
+            public Message getMessage() {
+                return null;
+            }
+        }.getMockInstance();
+
+        exeCtxt = new MockUp<ExecutionContext>(){ }.getMockInstance();
+    }
+
+    private static String toPem(String type, byte[] encoded) {
+        return "-----BEGIN " + type + "-----\n"
+            + Base64.getMimeEncoder().encodeToString(encoded)
+            + "\n-----END " + type + "-----\n";
+    }
+
+    private static String purchaseOrder(int items) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<purchaseOrder xmlns='http://tempuri.org/po.xsd' orderDate='2017-05-20'>\n");
+        sb.append("  <items>\n");
+        for (int i = 0; i < items; i++) {
+            sb.append("    <item partNum='").append(i).append("-AA'>\n")
+                .append("      <productName>Lawnmower</productName>\n")
+                .append("      <quantity>1</quantity>\n")
+                .append("      <USPrice>148.95</USPrice>\n")
+                .append("      <comment>Confirm this is electric</comment>\n")
+                .append("    </item>\n");
+        }
+        sb.append("  </items>\n");
+        sb.append("</purchaseOrder>\n");
+        return sb.toString();
+    }
+
+    // Runs the action until warm, then returns the mean bytes allocated per run.
+    private long allocatedPerRun(Runnable action) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            action.run();
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            action.run();
+        }
+        return (threadBean.getThreadAllocatedBytes(threadId) - before) / MEASURED_ITERATIONS;
+    }
+
+    private void checkBudget(String name, long allocated) {
+        String budget = budgets.getProperty(name);
+        Assert.assertNotNull(budget, "no budget for " + name);
+        System.out.printf("allocation %s: %d bytes (budget %s)\n", name, allocated, budget);
+        Assert.assertTrue(allocated <= Long.parseLong(budget.trim()),
+                          name + " allocated " + allocated + " bytes, over budget of " + budget);
+    }
+
+    @DataProvider(name = "documents")
+    public Object[][] documents() {
+        return new Object[][] {
+            { "small", purchaseOrder(2) },
+            { "large", purchaseOrder(400) }
+        };
+    }
+
+    @Test(dataProvider = "documents")
+    public void test_SignAllocation(String size, final String xml) {
+        msgCtxt.setVariable("my-private-key", privateKeyPem);
+        Map<String,String> props = new HashMap<String,String>();
+        props.put("source", "source-xml");
+        props.put("private-key", "{my-private-key}");
+        props.put("signing-method", "rsa-sha256");
+        props.put("digest-method", "sha256");
+        props.put("output-variable", "output");
+        final Sign callout = new Sign(props);
+
+        long allocated = allocatedPerRun(new Runnable() {
+                public void run() {
+                    msgCtxt.setVariable("source-xml", xml);
+                    ExecutionResult result = callout.execute(msgCtxt, exeCtxt);
+                    if (result != ExecutionResult.SUCCESS) {
+                        throw new IllegalStateException((String) msgCtxt.getVariable("xmldsig_error"));
+                    }
+                }
+            });
+        checkBudget("sign." + size, allocated);
+    }
+
+    @Test(dataProvider = "documents")
+    public void test_ValidateAllocation(String size, String xml) {
+        msgCtxt.setVariable("my-private-key", privateKeyPem);
+        msgCtxt.setVariable("source-xml", xml);
+        Map<String,String> signProps = new HashMap<String,String>();
+        signProps.put("source", "source-xml");
+        signProps.put("private-key", "{my-private-key}");
+        signProps.put("signing-method", "rsa-sha256");
+        signProps.put("digest-method", "sha256");
+        signProps.put("output-variable", "signed-xml");
+        Assert.assertEquals(new Sign(signProps).execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+
+        Map<String,String> props = new HashMap<String,String>();
+        props.put("source", "signed-xml");
+        props.put("public-key", publicKeyPem);
+        final Validate callout = new Validate(props);
+
+        long allocated = allocatedPerRun(new Runnable() {
+                public void run() {
+                    ExecutionResult result = callout.execute(msgCtxt, exeCtxt);
+                    if (result != ExecutionResult.SUCCESS
+                        || !Boolean.TRUE.equals(msgCtxt.getVariable("xmldsig_valid"))) {
+                        throw new IllegalStateException("validation failed");
+                    }
+                }
+            });
+        checkBudget("validate." + size, allocated);
+    }
+}